@@ -7,6 +7,7 @@
 module Ladle
   autoload :VERSION, "ladle/version"
   autoload :Server,  "ladle/server"
+  autoload :ServerPool, "ladle/server_pool"
 
   autoload :RubyProcess,  "ladle/ruby_process"
   autoload :JRubyProcess, "ladle/jruby_process"
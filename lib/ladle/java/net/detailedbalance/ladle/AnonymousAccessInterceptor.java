@@ -0,0 +1,93 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.filtering.EntryFilter;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.CompareOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An interceptor which hides the entries below particular suffixes from anonymous users.
+ * ApacheDS only has a service-wide switch for anonymous access; this lets a single tenant
+ * partition turn it off while the rest of the server still allows it.
+ */
+class AnonymousAccessInterceptor extends BaseInterceptor {
+    private volatile Set<Dn> protectedSuffixes = new HashSet<Dn>();
+
+    public AnonymousAccessInterceptor() {
+        super("ladleAnonymousAccess");
+    }
+
+    public synchronized void protect(Dn suffixDn) {
+        Set<Dn> suffixes = new HashSet<Dn>(protectedSuffixes);
+        suffixes.add(suffixDn);
+        protectedSuffixes = suffixes;
+    }
+
+    public synchronized void unprotect(Dn suffixDn) {
+        Set<Dn> suffixes = new HashSet<Dn>(protectedSuffixes);
+        suffixes.remove(suffixDn);
+        protectedSuffixes = suffixes;
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        check(searchContext);
+        EntryFilteringCursor cursor = next(searchContext);
+        if (searchContext.getSession().isAnonymous()) {
+            // a search based above a protected suffix may still reach into it
+            final Set<Dn> suffixes = protectedSuffixes;
+            cursor.addEntryFilter(new EntryFilter() {
+                public boolean accept(SearchOperationContext context, Entry entry) {
+                    return !isProtected(suffixes, entry.getDn());
+                }
+
+                public String toString(String tabs) {
+                    return tabs + "AnonymousAccessFilter";
+                }
+            });
+        }
+        return cursor;
+    }
+
+    @Override
+    public Entry lookup(LookupOperationContext lookupContext) throws LdapException {
+        check(lookupContext);
+        return next(lookupContext);
+    }
+
+    @Override
+    public boolean hasEntry(HasEntryOperationContext hasEntryContext) throws LdapException {
+        check(hasEntryContext);
+        return next(hasEntryContext);
+    }
+
+    @Override
+    public boolean compare(CompareOperationContext compareContext) throws LdapException {
+        check(compareContext);
+        return next(compareContext);
+    }
+
+    private void check(OperationContext context) throws LdapNoPermissionException {
+        if (context.getSession().isAnonymous() && isProtected(protectedSuffixes, context.getDn())) {
+            throw new LdapNoPermissionException("Anonymous access to " + context.getDn() + " is disabled");
+        }
+    }
+
+    private static boolean isProtected(Set<Dn> suffixes, Dn dn) {
+        for (Dn suffixDn : suffixes) {
+            if (dn.equals(suffixDn) || dn.isDescendantOf(suffixDn)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An interceptor which records the DNs touched by write operations below a suffix, so that a
+ * {@link DirectorySnapshot} only has to revert those.  Adds, deletes and modifies mark a single
+ * entry; renames and moves mark the whole subtree at both the old and the new DN.
+ */
+class ChangeTracker extends BaseInterceptor {
+    private final Dn suffixDn;
+    private Set<Dn> changedEntries = new HashSet<Dn>();
+    private Set<Dn> changedSubtrees = new HashSet<Dn>();
+    private boolean paused = false;
+
+    public ChangeTracker(Dn suffixDn) {
+        super("ladleChangeTracker");
+        this.suffixDn = suffixDn;
+    }
+
+    @Override
+    public void add(AddOperationContext addContext) throws LdapException {
+        entryChanged(addContext.getDn());
+        next(addContext);
+    }
+
+    @Override
+    public void delete(DeleteOperationContext deleteContext) throws LdapException {
+        entryChanged(deleteContext.getDn());
+        next(deleteContext);
+    }
+
+    @Override
+    public void modify(ModifyOperationContext modifyContext) throws LdapException {
+        entryChanged(modifyContext.getDn());
+        next(modifyContext);
+    }
+
+    @Override
+    public void rename(RenameOperationContext renameContext) throws LdapException {
+        subtreeChanged(renameContext.getDn());
+        subtreeChanged(renameContext.getNewDn());
+        next(renameContext);
+    }
+
+    @Override
+    public void move(MoveOperationContext moveContext) throws LdapException {
+        subtreeChanged(moveContext.getDn());
+        subtreeChanged(moveContext.getNewDn());
+        next(moveContext);
+    }
+
+    @Override
+    public void moveAndRename(MoveAndRenameOperationContext moveAndRenameContext) throws LdapException {
+        subtreeChanged(moveAndRenameContext.getDn());
+        subtreeChanged(moveAndRenameContext.getNewDn());
+        next(moveAndRenameContext);
+    }
+
+    private synchronized void entryChanged(Dn dn) {
+        if (!paused && isTracked(dn)) changedEntries.add(dn);
+    }
+
+    private synchronized void subtreeChanged(Dn dn) {
+        if (!paused && isTracked(dn)) changedSubtrees.add(dn);
+    }
+
+    private boolean isTracked(Dn dn) {
+        return dn != null && (dn.equals(suffixDn) || dn.isDescendantOf(suffixDn));
+    }
+
+    /**
+     * Stops recording changes, e.g., while a snapshot is being restored.  Pausing is global, so
+     * whoever pauses has to keep other writes out until {@link #resume} (as
+     * {@link Server#reset} does); any that got in would be neither recorded nor reverted.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+    }
+
+    /**
+     * Returns the single entries changed since the last call to {@link #clear}.
+     */
+    public synchronized Set<Dn> getChangedEntries() {
+        return new HashSet<Dn>(changedEntries);
+    }
+
+    /**
+     * Returns the roots of the subtrees changed since the last call to {@link #clear}.
+     */
+    public synchronized Set<Dn> getChangedSubtrees() {
+        return new HashSet<Dn>(changedSubtrees);
+    }
+
+    public synchronized void clear() {
+        changedEntries = new HashSet<Dn>();
+        changedSubtrees = new HashSet<Dn>();
+    }
+}
@@ -0,0 +1,406 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.StringValue;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.DirectoryService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary alternative to an LDIF file: the entries already parsed and normalized against the
+ * schema, in an order where parents come before their children.  Loading one skips the LDIF
+ * parsing (line folding, base64) and the normalization of every attribute value.
+ * <p>
+ * The normalized values are stored as the schema normalized them, so a compiled file is only
+ * good for the ApacheDS version and custom schemas it was compiled with; both are recorded in
+ * the header and checked when the file is read.  The format is a magic number, a format
+ * {@link #VERSION}, the ApacheDS version and a digest of the custom schemas, followed by each
+ * entry written with a plain {@link DataOutputStream}: its DN, then for each attribute the
+ * attribute type's index, the user-provided id and each value's user-provided and normalized
+ * forms (or a marker when the schema left it unnormalized).  To keep the file compact, an
+ * entry whose parent is in the file only stores its RDN and the parent's position, each
+ * attribute type's OID is only written the first time it appears, and a normalized value which
+ * is the same as the user-provided one is not written again.
+ */
+class CompiledLdif {
+    private static final byte[] MAGIC = { 'L', 'A', 'D', 'L', 'E', 'L', 'D', 'I', 'F' };
+    private static final int VERSION = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NOT_IN_FILE = -1;
+    /** Written in place of a normalized value which is the same as the user-provided one. */
+    private static final int SAME_AS_USER_PROVIDED = -1;
+    /** Written in place of the normalized value when the schema didn't provide one. */
+    private static final int NOT_NORMALIZED = -2;
+    private static final byte STRING_VALUE = 0;
+    private static final byte BINARY_VALUE = 1;
+
+    private CompiledLdif() { }
+
+    /**
+     * Whether the file starts like a compiled LDIF.  False for unreadable files, which are
+     * left to the LDIF reader to complain about.
+     */
+    public static boolean isCompiled(File file) {
+        if (!file.isFile()) return false;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] start = new byte[MAGIC.length];
+                return in.read(start) == MAGIC.length && Arrays.equals(start, MAGIC);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String apacheDsVersion() {
+        return String.valueOf(DirectoryService.class.getPackage().getImplementationVersion());
+    }
+
+    /**
+     * Identifies the custom schemas' contents, in order.
+     */
+    private static String schemasDigest(Collection<String> customSchemaFilenames) throws IOException {
+        MessageDigest digest = SnapshotCache.newDigest();
+        for (String schemaFileName : customSchemaFilenames) {
+            SnapshotCache.updateFromFile(digest, schemaFileName);
+        }
+        return SnapshotCache.toHex(digest);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = Strings.getBytesUtf8(string);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes entries to a new compiled file.  The file only appears, complete, when the writer
+     * is {@link #commit committed}.
+     */
+    public static class Writer {
+        private final File file;
+        private final File partial;
+        private final DataOutputStream out;
+        private final Map<String, Integer> positions = new HashMap<String, Integer>();
+        private final Map<String, Integer> attributeTypes = new HashMap<String, Integer>();
+        private int count = 0;
+
+        /**
+         * @param customSchemaFilenames the custom schemas the entries were normalized with
+         */
+        public Writer(File file, Collection<String> customSchemaFilenames) throws IOException {
+            this.file = file;
+            this.partial = new File(file.getPath() + ".partial");
+            this.out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(partial), BUFFER_SIZE));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(apacheDsVersion());
+            out.writeUTF(schemasDigest(customSchemaFilenames));
+        }
+
+        /**
+         * Entries must be schema-aware, and come after their parents.
+         */
+        public void write(Entry entry) throws IOException {
+            out.writeBoolean(true);
+            Dn dn = entry.getDn();
+            Integer parent = positions.get(dn.getParent().getNormName());
+            if (parent == null) {
+                out.writeInt(NOT_IN_FILE);
+                writeString(out, dn.getName());
+            } else {
+                out.writeInt(parent);
+                writeString(out, dn.getRdn().getName());
+            }
+            positions.put(dn.getNormName(), count);
+
+            out.writeInt(entry.size());
+            for (Attribute attribute : entry) {
+                writeAttributeType(attribute.getAttributeType());
+                writeString(out, attribute.getUpId());
+                out.writeInt(attribute.size());
+                for (Value<?> value : attribute) {
+                    writeValue(value);
+                }
+            }
+            count++;
+        }
+
+        private void writeAttributeType(AttributeType attributeType) throws IOException {
+            String oid = attributeType.getOid();
+            Integer type = attributeTypes.get(oid);
+            if (type == null) {
+                // the next unused number introduces a new type
+                type = attributeTypes.size();
+                attributeTypes.put(oid, type);
+                out.writeInt(type);
+                out.writeUTF(oid);
+            } else {
+                out.writeInt(type);
+            }
+        }
+
+        private void writeValue(Value<?> value) throws IOException {
+            if (value.isHumanReadable()) {
+                out.writeByte(STRING_VALUE);
+                String upValue = value.getString();
+                writeString(out, upValue);
+                Object normValue = value.getNormValue();
+                if (!(normValue instanceof String)) {
+                    out.writeInt(NOT_NORMALIZED);
+                } else if (upValue.equals(normValue)) {
+                    out.writeInt(SAME_AS_USER_PROVIDED);
+                } else {
+                    writeString(out, (String) normValue);
+                }
+            } else {
+                out.writeByte(BINARY_VALUE);
+                byte[] bytes = value.getBytes();
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        /**
+         * Finishes the file and moves it into place.
+         *
+         * @return the number of entries written
+         */
+        public int commit() throws IOException {
+            out.writeBoolean(false);
+            out.writeInt(count);
+            out.close();
+            if (file.exists() && !file.delete() || !partial.renameTo(file)) {
+                throw new LadleFatalException("Could not move " + partial + " to " + file);
+            }
+            return count;
+        }
+
+        /**
+         * Discards the file, unless it has already been committed.
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // about to be deleted anyway
+            }
+            partial.delete();
+        }
+    }
+
+    /**
+     * Reads the entries back from a compiled file.
+     */
+    public static class Reader {
+        private final File file;
+        private final SchemaManager schemaManager;
+        private final DataInputStream in;
+        private final List<Dn> dns = new ArrayList<Dn>();
+        private final List<AttributeType> attributeTypes = new ArrayList<AttributeType>();
+        private int count = 0;
+        private boolean finished = false;
+
+        /**
+         * @param customSchemaFilenames the custom schemas in the schema manager, which the file
+         *   must have been compiled with
+         * @throws LadleFatalException if the file was compiled in another format, by another
+         *   ApacheDS version or with other custom schemas
+         */
+        public Reader(File file, SchemaManager schemaManager, Collection<String> customSchemaFilenames)
+            throws IOException
+        {
+            this.file = file;
+            this.schemaManager = schemaManager;
+            this.in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new LadleFatalException(file + " is not a compiled LDIF");
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new LadleFatalException(file + " was compiled in format version " +
+                        version + "; this version of ladle reads " + VERSION + ".  Compile it again.");
+                }
+                String compiledBy = in.readUTF();
+                if (!compiledBy.equals(apacheDsVersion())) {
+                    throw new LadleFatalException(file + " was compiled with ApacheDS " +
+                        compiledBy + "; this is " + apacheDsVersion() + ".  Compile it again.");
+                }
+                if (!in.readUTF().equals(schemasDigest(customSchemaFilenames))) {
+                    throw new LadleFatalException(file + " was compiled with other custom " +
+                        "schemas than this server's.  Compile it again.");
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            } catch (RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return up to <code>max</code> entries, or null once they have all been read
+         */
+        public List<Entry> read(int max) throws IOException {
+            if (finished) return null;
+            List<Entry> entries = new ArrayList<Entry>(max);
+            try {
+                while (entries.size() < max) {
+                    if (!in.readBoolean()) {
+                        finish();
+                        break;
+                    }
+                    entries.add(readEntry());
+                    count++;
+                }
+            } catch (EOFException e) {
+                throw truncated();
+            }
+            return entries.isEmpty() ? null : entries;
+        }
+
+        private Entry readEntry() throws IOException {
+            try {
+                Dn dn;
+                int parent = in.readInt();
+                if (parent == NOT_IN_FILE) {
+                    dn = new Dn(schemaManager, readString());
+                } else {
+                    List<Rdn> parentRdns = dns.get(parent).getRdns();
+                    Rdn[] rdns = new Rdn[parentRdns.size() + 1];
+                    rdns[0] = new Rdn(schemaManager, readString());
+                    for (int i = 1; i < rdns.length; i++) {
+                        rdns[i] = parentRdns.get(i - 1);
+                    }
+                    dn = new Dn(schemaManager, rdns);
+                }
+                dns.add(dn);
+                Entry entry = new DefaultEntry(schemaManager, dn);
+
+                int attributes = in.readInt();
+                for (int i = 0; i < attributes; i++) {
+                    AttributeType attributeType = readAttributeType();
+                    Attribute attribute = new DefaultAttribute(readString(), attributeType);
+                    int values = in.readInt();
+                    for (int j = 0; j < values; j++) {
+                        readValue(attribute);
+                    }
+                    entry.add(attribute);
+                }
+                return entry;
+            } catch (LdapException e) {
+                throw new LadleFatalException("Could not read entry " + (count + 1) + " of " +
+                    file + ".  Was it compiled with other custom schemas?", e);
+            }
+        }
+
+        private AttributeType readAttributeType() throws IOException, LdapException {
+            int type = in.readInt();
+            if (type == attributeTypes.size()) {
+                attributeTypes.add(schemaManager.lookupAttributeTypeRegistry(in.readUTF()));
+            }
+            return attributeTypes.get(type);
+        }
+
+        private void readValue(Attribute attribute) throws IOException, LdapException {
+            byte tag = in.readByte();
+            if (tag == STRING_VALUE) {
+                String upValue = readString();
+                int normLength = in.readInt();
+                if (normLength == NOT_NORMALIZED) {
+                    // left to the attribute to normalize, as if it came from the text LDIF
+                    attribute.add(upValue);
+                } else {
+                    String normValue = normLength == SAME_AS_USER_PROVIDED ? upValue : readString(normLength);
+                    attribute.add(new NormalizedValue(attribute.getAttributeType(), upValue, normValue));
+                }
+            } else if (tag == BINARY_VALUE) {
+                attribute.add(readBytes(in.readInt()));
+            } else {
+                throw new LadleFatalException("Could not read entry " + (count + 1) + " of " +
+                    file + ": unknown value type " + tag);
+            }
+        }
+
+        private String readString() throws IOException {
+            return readString(in.readInt());
+        }
+
+        private String readString(int length) throws IOException {
+            return Strings.utf8ToString(readBytes(length));
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private LadleFatalException truncated() {
+            return new LadleFatalException(file + " ends after " + count + " entries; it " +
+                "was not completely written");
+        }
+
+        private void finish() throws IOException {
+            finished = true;
+            int expected = in.readInt();
+            if (expected != count) {
+                throw new LadleFatalException(
+                    file + " should have " + expected + " entries but has " + count);
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * A string value which takes its normalized form from the compiled file rather than
+     * normalizing it again.
+     */
+    private static class NormalizedValue extends StringValue {
+        private static final long serialVersionUID = 1L;
+
+        NormalizedValue(AttributeType attributeType, String upValue, String normValue) {
+            super(upValue);
+            this.attributeType = attributeType;
+            this.normalizedValue = normValue;
+        }
+    }
+}
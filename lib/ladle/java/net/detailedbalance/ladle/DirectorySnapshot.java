@@ -0,0 +1,154 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory copy of the user attributes of every entry below a suffix.  Combined with the
+ * DNs recorded by a {@link ChangeTracker}, it can put those entries back the way they were
+ * without touching anything else in the directory.
+ */
+class DirectorySnapshot {
+    private final Map<String, Entry> entries;
+
+    private DirectorySnapshot(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    public static DirectorySnapshot take(CoreSession session, Dn suffixDn) throws Exception {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (Entry entry : subtree(session, suffixDn)) {
+            entries.put(entry.getDn().getNormName(), entry.clone());
+        }
+        return new DirectorySnapshot(entries);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Reverts the given entries and subtrees to their state in this snapshot.  Entries which did
+     * not exist when the snapshot was taken are deleted, missing ones are re-added and any others
+     * have their user attributes replaced.
+     *
+     * @return the number of entries which were reverted
+     */
+    public int restore(CoreSession session, Collection<Dn> changedEntries, Collection<Dn> changedSubtrees)
+        throws Exception
+    {
+        Map<String, Dn> affected = new LinkedHashMap<String, Dn>();
+        for (Dn dn : changedEntries) {
+            affected.put(dn.getNormName(), dn);
+        }
+        for (Dn root : changedSubtrees) {
+            for (Entry entry : entries.values()) {
+                if (isInSubtree(entry.getDn(), root)) affected.put(entry.getDn().getNormName(), entry.getDn());
+            }
+            if (session.exists(root)) {
+                for (Entry entry : subtree(session, root)) {
+                    affected.put(entry.getDn().getNormName(), entry.getDn());
+                }
+            }
+        }
+
+        List<Dn> toDelete = new ArrayList<Dn>();
+        List<Dn> toRevert = new ArrayList<Dn>();
+        List<Entry> toAdd = new ArrayList<Entry>();
+        for (Map.Entry<String, Dn> candidate : affected.entrySet()) {
+            Entry original = entries.get(candidate.getKey());
+            boolean exists = session.exists(candidate.getValue());
+            if (exists && original == null) {
+                toDelete.add(candidate.getValue());
+            } else if (exists) {
+                toRevert.add(candidate.getValue());
+            } else if (original != null) {
+                toAdd.add(original);
+            }
+        }
+
+        // children before parents
+        Collections.sort(toDelete, new Comparator<Dn>() {
+            public int compare(Dn a, Dn b) {
+                return b.size() - a.size();
+            }
+        });
+        for (Dn dn : toDelete) {
+            session.delete(dn);
+        }
+
+        for (Dn dn : toRevert) {
+            List<Modification> modifications = revertModifications(
+                session.lookup(dn), entries.get(dn.getNormName()));
+            if (!modifications.isEmpty()) {
+                session.modify(dn, modifications);
+            }
+        }
+
+        // parents before children
+        Collections.sort(toAdd, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.getDn().size() - b.getDn().size();
+            }
+        });
+        for (Entry entry : toAdd) {
+            session.add(entry.clone());
+        }
+
+        return toDelete.size() + toRevert.size() + toAdd.size();
+    }
+
+    private static List<Modification> revertModifications(Entry current, Entry original) {
+        List<Modification> modifications = new ArrayList<Modification>();
+        for (Attribute attribute : current) {
+            if (!original.containsAttribute(attribute.getAttributeType())) {
+                modifications.add(new DefaultModification(
+                    ModificationOperation.REMOVE_ATTRIBUTE, attribute.getId()));
+            }
+        }
+        for (Attribute attribute : original) {
+            if (!attribute.equals(current.get(attribute.getAttributeType()))) {
+                modifications.add(new DefaultModification(
+                    ModificationOperation.REPLACE_ATTRIBUTE, attribute.clone()));
+            }
+        }
+        return modifications;
+    }
+
+    private boolean isInSubtree(Dn dn, Dn root) {
+        return dn.equals(root) || dn.isDescendantOf(root);
+    }
+
+    private static List<Entry> subtree(CoreSession session, Dn base) throws Exception {
+        List<Entry> found = new ArrayList<Entry>();
+        Cursor<Entry> cursor = session.search(base, SearchScope.SUBTREE,
+            new PresenceNode(SchemaConstants.OBJECT_CLASS_AT), AliasDerefMode.NEVER_DEREF_ALIASES);
+        try {
+            while (cursor.next()) {
+                found.add(cursor.get());
+            }
+        } finally {
+            cursor.close();
+        }
+        return found;
+    }
+}
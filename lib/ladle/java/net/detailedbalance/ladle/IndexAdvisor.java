@@ -0,0 +1,150 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An interceptor which records the attributes used in search filters and counts how many
+ * searches had to scan the searched partition for want of an index on an attribute.  A search
+ * only scans if the ApacheDS optimizer can't find its candidates from an index, as classified by
+ * {@link OperationStats#usesIndex}: e.g., an AND with one indexed term doesn't scan however many
+ * of its other terms are unindexed.  For a search which does scan, the unindexed attributes it
+ * filters on (outside of NOTs, which indexes don't help) are the candidates for
+ * <code>--indexes</code>.  Searches of a single entry, of the system partition and of the root
+ * DSE are ignored.
+ */
+class IndexAdvisor extends BaseInterceptor {
+    private static final Logger log = Logger.getLogger(IndexAdvisor.class);
+
+    private int searches = 0;
+    private final Map<String, Integer> filteredOn = new HashMap<String, Integer>();
+    private final Map<String, Integer> unindexed = new HashMap<String, Integer>();
+
+    public IndexAdvisor() {
+        super("ladleIndexAdvisor");
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        // searches of the root DSE don't belong to any one partition
+        if (!searchContext.getDn().isEmpty()) {
+            Partition partition = directoryService.getPartitionNexus().getPartition(searchContext.getDn());
+            if (partition instanceof AbstractBTreePartition && !"system".equals(partition.getId())) {
+                record((AbstractBTreePartition) partition, searchContext);
+            }
+        }
+        return next(searchContext);
+    }
+
+    private void record(AbstractBTreePartition partition, SearchOperationContext searchContext)
+        throws LdapException
+    {
+        ExprNode filter = searchContext.getFilter();
+        Set<AttributeType> attributeTypes = new HashSet<AttributeType>();
+        collectAttributeTypes(filter, attributeTypes);
+        Set<AttributeType> candidates = new HashSet<AttributeType>();
+        // a single entry is looked up by its DN whatever the filter
+        if (searchContext.getScope() != SearchScope.OBJECT) {
+            collectUnindexed(partition, filter, candidates);
+        }
+
+        synchronized (this) {
+            searches++;
+            for (AttributeType attributeType : attributeTypes) {
+                increment(filteredOn, attributeType.getName());
+            }
+            for (AttributeType attributeType : candidates) {
+                increment(unindexed, attributeType.getName());
+            }
+        }
+    }
+
+    private static void collectAttributeTypes(ExprNode node, Set<AttributeType> attributeTypes) {
+        if (node instanceof LeafNode) {
+            AttributeType attributeType = ((LeafNode) node).getAttributeType();
+            if (attributeType != null) attributeTypes.add(attributeType);
+        } else if (node instanceof BranchNode) {
+            for (ExprNode child : ((BranchNode) node).getChildren()) {
+                collectAttributeTypes(child, attributeTypes);
+            }
+        }
+    }
+
+    /**
+     * Collects the unindexed attributes which keep the node from being found from an index.
+     */
+    private static void collectUnindexed(
+        AbstractBTreePartition partition, ExprNode node, Set<AttributeType> attributeTypes
+    ) throws LdapException {
+        if (OperationStats.usesIndex(partition, node)) return;
+        if (node instanceof AndNode || node instanceof OrNode) {
+            // indexing any term of an AND would do, while an OR needs all of them
+            for (ExprNode child : ((BranchNode) node).getChildren()) {
+                collectUnindexed(partition, child, attributeTypes);
+            }
+        } else if (node instanceof LeafNode) {
+            AttributeType attributeType = ((LeafNode) node).getAttributeType();
+            if (attributeType != null) attributeTypes.add(attributeType);
+        }
+    }
+
+    private static void increment(Map<String, Integer> counts, String name) {
+        Integer count = counts.get(name);
+        counts.put(name, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Logs the attributes seen so far, most-used first.  Each unindexed one is logged as a
+     * warning so that it shows up even when the server isn't verbose.
+     */
+    public synchronized void report() {
+        log.info("Index advisor saw " + searches + " searches filtering on " + describe(filteredOn));
+        for (String name : byCount(unindexed)) {
+            log.warn("Index advisor: " + unindexed.get(name) + " of " + searches +
+                " searches scanned, filtering on unindexed attribute " + name);
+        }
+        if (!unindexed.isEmpty()) {
+            log.info("Index advisor suggests also indexing " + byCount(unindexed));
+        }
+    }
+
+    private static String describe(Map<String, Integer> counts) {
+        List<String> described = new ArrayList<String>();
+        for (String name : byCount(counts)) {
+            described.add(name + " (" + counts.get(name) + ')');
+        }
+        return described.toString();
+    }
+
+    private static List<String> byCount(final Map<String, Integer> counts) {
+        List<String> names = new ArrayList<String>(counts.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int byCount = counts.get(b) - counts.get(a);
+                return byCount != 0 ? byCount : a.compareTo(b);
+            }
+        });
+        return names;
+    }
+}
@@ -0,0 +1,24 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
+
+/**
+ * A JDBM partition whose sync-on-write can be switched after it has been initialized.
+ * {@link JdbmPartition#setSyncOnWrite} refuses once the partition is running, but the bulk
+ * loader needs it off only while it loads, and partitions can be added to a running server.
+ */
+class LadleJdbmPartition extends JdbmPartition {
+    public LadleJdbmPartition(SchemaManager schemaManager, DnFactory dnFactory) {
+        super(schemaManager, dnFactory);
+    }
+
+    /**
+     * Turns sync-on-write on or off, whether or not the partition has been initialized.  It is
+     * only consulted after each write, so it takes effect from the next one.
+     */
+    public void switchSyncOnWrite(boolean syncOnWrite) {
+        isSyncOnWrite.set(syncOnWrite);
+    }
+}
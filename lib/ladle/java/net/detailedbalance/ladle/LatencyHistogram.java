@@ -0,0 +1,82 @@
+package net.detailedbalance.ladle;
+
+/**
+ * A fixed-size histogram of latencies in microseconds, in the style of HdrHistogram: each
+ * power-of-two range is split into 16 linear buckets, so any recorded value is reported to
+ * within about 6% while the whole range up to several days fits in a few hundred counters.
+ * Not thread-safe; callers synchronize.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private final long[] counts = new long[SUB_BUCKETS * (64 - SUB_BUCKET_BITS)];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public void record(long micros) {
+        long value = Math.max(micros, 0);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds everything recorded in another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the highest value which is equivalent to the value at the given percentile, i.e.,
+     * the upper bound of the bucket it fell in.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) return 0;
+        long target = Math.max((long) Math.ceil(count * percentile / 100.0), 1);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) return Math.min(highestValueIn(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Renders the summary as a JSON object.
+     */
+    public String toJson() {
+        return String.format(
+            "{\"min\":%d,\"mean\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}",
+            count == 0 ? 0 : min, count == 0 ? 0 : sum / count,
+            percentile(50), percentile(90), percentile(99), percentile(99.9), max);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,315 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads an LDIF with the CPU-bound work spread over several threads.  A reader thread splits
+ * the file into batches of records and hands them to a pool of workers, which parse them and
+ * build schema-aware entries.  The finished batches are then taken back in file order and passed
+ * to a {@link Sink} one entry at a time on the calling thread, since the partitions serialize
+ * writes anyway.
+ * <p>
+ * Reading can be {@link #start started} before the schema is available, e.g., while the
+ * directory service is still starting up.  The workers parse their batches as far as they can
+ * without the schema and then wait for {@link #load} to supply it.
+ * <p>
+ * The LDIF does not have to list parents before their children.  An entry whose parent is
+ * neither in the directory nor already added is held back until the parent turns up.
+ * <p>
+ * A {@link CompiledLdif} is read instead of parsed: the reader thread waits for the schema,
+ * then hands over the already-normalized entries directly.
+ */
+class LdifPipeline {
+    /**
+     * Queued by the reader after the last batch.  Never run.
+     */
+    private static final Future<List<Entry>> END_OF_FILE = new FutureTask<List<Entry>>(
+        new Callable<List<Entry>>() {
+            public List<Entry> call() { return null; }
+        });
+
+    /**
+     * Where the loaded entries go.
+     */
+    interface Sink {
+        /**
+         * @return whether the entry was added (as opposed to being skipped)
+         */
+        boolean add(Entry entry) throws Exception;
+
+        boolean exists(Dn dn) throws Exception;
+    }
+
+    private final File ldif;
+    private final int threads;
+    private final Collection<String> customSchemaFilenames;
+    private final BlockingQueue<Future<List<Entry>>> parsed;
+    private final CountDownLatch schemaAvailable = new CountDownLatch(1);
+    private volatile SchemaManager schemaManager;
+    private ExecutorService reader;
+    private ExecutorService workers;
+    private Future<?> reading;
+
+    private final Set<String> knownDns = new HashSet<String>();
+    private final Map<String, List<Entry>> waitingForParent = new HashMap<String, List<Entry>>();
+    private int added = 0;
+
+    /**
+     * @param customSchemaFilenames the custom schemas the LDIF must have been compiled with, if
+     *   it is a {@link CompiledLdif}
+     */
+    public LdifPipeline(File ldif, int threads, Collection<String> customSchemaFilenames) {
+        this.ldif = ldif;
+        this.threads = Math.max(threads, 1);
+        this.customSchemaFilenames = customSchemaFilenames;
+        // keep the workers busy without reading the whole file into memory
+        this.parsed = new ArrayBlockingQueue<Future<List<Entry>>>(this.threads * 2);
+    }
+
+    public File getFile() {
+        return ldif;
+    }
+
+    /**
+     * Starts reading and parsing the LDIF in the background.  The pipeline must then be either
+     * {@link #load loaded} or {@link #cancel cancelled}.
+     *
+     * @return this pipeline
+     */
+    public synchronized LdifPipeline start() {
+        if (reading == null) {
+            reader = Executors.newSingleThreadExecutor(new LoaderThreads("ldif-reader"));
+            workers = Executors.newFixedThreadPool(threads, new LoaderThreads("ldif-parser"));
+            reading = reader.submit(CompiledLdif.isCompiled(ldif) ? new ReadCompiled() : new Read());
+        }
+        return this;
+    }
+
+    /**
+     * Stops reading and parsing, if that is still going on.
+     */
+    public synchronized void cancel() {
+        if (reading != null) {
+            reader.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Finishes parsing the LDIF against the given schema and passes each entry to the sink,
+     * starting the pipeline first if necessary.
+     *
+     * @return the number of entries added
+     * @throws LadleFatalException if some entries' parents never appear
+     */
+    public int load(SchemaManager schemaManager, Sink sink) throws Exception {
+        start();
+        this.schemaManager = schemaManager;
+        schemaAvailable.countDown();
+        try {
+            Future<List<Entry>> batch;
+            while ((batch = parsed.take()) != END_OF_FILE) {
+                insertAll(batch, sink);
+            }
+            // rethrows anything which stopped the reader early
+            get(reading);
+        } finally {
+            cancel();
+        }
+
+        if (!waitingForParent.isEmpty()) {
+            String parent = waitingForParent.keySet().iterator().next();
+            int others = countWaiting() - 1;
+            throw new LadleFatalException("Entry " + waitingForParent.get(parent).get(0).getDn() +
+                (others > 0 ? " (and " + others + " more)" : "") +
+                " has no parent in the directory or in " + ldif);
+        }
+        return added;
+    }
+
+    private void insertAll(Future<List<Entry>> batch, Sink sink) throws Exception {
+        for (Entry entry : get(batch)) {
+            insert(entry, sink);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private void insert(Entry entry, Sink sink) throws Exception {
+        Dn parent = entry.getDn().getParent();
+        String parentName = parent.getNormName();
+        if (!parent.isEmpty() && !knownDns.contains(parentName)) {
+            if (sink.exists(parent)) {
+                knownDns.add(parentName);
+            } else {
+                List<Entry> siblings = waitingForParent.get(parentName);
+                if (siblings == null) {
+                    siblings = new ArrayList<Entry>();
+                    waitingForParent.put(parentName, siblings);
+                }
+                siblings.add(entry);
+                return;
+            }
+        }
+
+        // Add the entry, then any descendants which were waiting for it
+        Deque<Entry> ready = new ArrayDeque<Entry>();
+        ready.add(entry);
+        while (!ready.isEmpty()) {
+            Entry next = ready.remove();
+            if (sink.add(next)) added++;
+            String name = next.getDn().getNormName();
+            knownDns.add(name);
+            List<Entry> children = waitingForParent.remove(name);
+            if (children != null) ready.addAll(children);
+        }
+    }
+
+    private int countWaiting() {
+        int count = 0;
+        for (List<Entry> entries : waitingForParent.values()) {
+            count += entries.size();
+        }
+        return count;
+    }
+
+    private class Read implements Callable<Void> {
+        public Void call() throws Exception {
+            try {
+                LdifRecordReader in = new LdifRecordReader(ldif);
+                try {
+                    List<LdifRecordReader.Record> batch;
+                    while (!(batch = in.readBatch()).isEmpty()) {
+                        parsed.put(workers.submit(new Parse(batch)));
+                    }
+                } finally {
+                    in.close();
+                }
+            } finally {
+                // even after a failure, so that load() stops waiting and reports it
+                parsed.put(END_OF_FILE);
+            }
+            return null;
+        }
+    }
+
+    private class ReadCompiled implements Callable<Void> {
+        public Void call() throws Exception {
+            try {
+                schemaAvailable.await();
+                CompiledLdif.Reader in = new CompiledLdif.Reader(ldif, schemaManager, customSchemaFilenames);
+                try {
+                    List<Entry> batch;
+                    while ((batch = in.read(LdifRecordReader.RECORDS_PER_BATCH)) != null) {
+                        parsed.put(done(batch));
+                    }
+                } finally {
+                    in.close();
+                }
+            } finally {
+                parsed.put(END_OF_FILE);
+            }
+            return null;
+        }
+
+        private Future<List<Entry>> done(final List<Entry> batch) {
+            FutureTask<List<Entry>> future = new FutureTask<List<Entry>>(
+                new Callable<List<Entry>>() {
+                    public List<Entry> call() { return batch; }
+                });
+            future.run();
+            return future;
+        }
+    }
+
+    private class Parse implements Callable<List<Entry>> {
+        private final List<LdifRecordReader.Record> records;
+
+        public Parse(List<LdifRecordReader.Record> records) {
+            this.records = records;
+        }
+
+        public List<Entry> call() throws Exception {
+            // the reader only accepts the version line first, but the records may be in any order
+            StringBuilder text = new StringBuilder("version: 1\n");
+            for (LdifRecordReader.Record record : records) {
+                String recordText = record.getText();
+                if (recordText.startsWith("version:")) {
+                    recordText = recordText.substring(recordText.indexOf('\n') + 1);
+                }
+                text.append(recordText).append('\n');
+            }
+            List<LdifEntry> ldifEntries;
+            LdifReader reader = new LdifReader();
+            try {
+                ldifEntries = reader.parseLdif(text.toString());
+            } finally {
+                reader.close();
+            }
+
+            schemaAvailable.await();
+            List<Entry> entries = new ArrayList<Entry>(ldifEntries.size());
+            for (LdifEntry ldifEntry : ldifEntries) {
+                Entry entry = new DefaultEntry(schemaManager, ldifEntry.getEntry());
+                if (!entry.getDn().isSchemaAware()) {
+                    entry.getDn().apply(schemaManager);
+                }
+                entries.add(entry);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Daemon threads, so that a pipeline which is never loaded can't keep the JVM alive.
+     */
+    private static class LoaderThreads implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public LoaderThreads(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + '-' + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
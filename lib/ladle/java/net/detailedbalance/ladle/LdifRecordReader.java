@@ -0,0 +1,88 @@
+package net.detailedbalance.ladle;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits an LDIF file into its records without parsing them, so that they can be parsed on
+ * several threads, noting the line each record starts on.  Records end at empty lines only: a
+ * line holding just a space continues the line before it, and so is part of the record.
+ */
+class LdifRecordReader {
+    public static final int RECORDS_PER_BATCH = 256;
+
+    private final BufferedReader in;
+    private int lineNumber = 0;
+
+    public LdifRecordReader(File ldif) throws IOException {
+        this.in = new BufferedReader(new InputStreamReader(new FileInputStream(ldif), "UTF-8"));
+    }
+
+    /**
+     * Reads up to {@link #RECORDS_PER_BATCH} records.  Comments between records are kept with
+     * the record which follows them.
+     *
+     * @return the records, or an empty list at the end of the file
+     */
+    public List<Record> readBatch() throws IOException {
+        List<Record> batch = new ArrayList<Record>();
+        StringBuilder text = new StringBuilder();
+        int startLine = 0;
+        // whether the record has anything but comments so far
+        boolean content = false;
+        boolean comment = false;
+        String line;
+        while (batch.size() < RECORDS_PER_BATCH && (line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0) {
+                if (content) {
+                    batch.add(new Record(startLine, text.toString()));
+                    text.setLength(0);
+                    content = false;
+                }
+            } else {
+                // a continuation belongs to whatever the line before it was
+                if (line.charAt(0) != ' ') comment = line.charAt(0) == '#';
+                if (!content && !comment) {
+                    startLine = lineNumber;
+                    content = true;
+                }
+                text.append(line).append('\n');
+            }
+        }
+        if (content) {
+            batch.add(new Record(startLine, text.toString()));
+        }
+        return batch;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static class Record {
+        private final int line;
+        private final String text;
+
+        public Record(int line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+
+        /**
+         * @return the number of the record's first line other than comments, counting from 1
+         */
+        public int getLine() {
+            return line;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.name.Ava;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.ObjectClass;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.SyntaxChecker;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks every entry in an LDIF against a schema without loading any of them, so that a bad
+ * fixture can be found (all of its problems, not just the first) before paying for a full
+ * start.  Records are checked on a pool of threads; each one is parsed on its own so that its
+ * problems can be reported with the line it starts on.
+ * <p>
+ * The checks are the ones the schema interceptor would make when the entry is added: the
+ * object classes and attribute types exist, there's a structural object class, required
+ * attributes are present and no others (unless the entry is an
+ * <code>extensibleObject</code>), single-valued attributes have one value, the values match
+ * their syntaxes and the RDN's values are in the entry.  Afterwards, the whole file is checked
+ * for repeated DNs and for entries whose parents are neither in the file nor (being the
+ * partition's suffix or outside it) provided by the server.
+ */
+class LdifValidator {
+    private final File ldif;
+    private final int threads;
+
+    public LdifValidator(File ldif, int threads) {
+        this.ldif = ldif;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * @param suffixDn the DN of the partition the LDIF would be loaded into
+     */
+    public Report validate(SchemaManager schemaManager, Dn suffixDn) throws Exception {
+        if (CompiledLdif.isCompiled(ldif)) {
+            throw new LadleFatalException(ldif + " is compiled; only LDIF text can be validated");
+        }
+
+        long startedAt = System.currentTimeMillis();
+        List<Problem> problems = new ArrayList<Problem>();
+        Map<String, Integer> lines = new HashMap<String, Integer>();
+        List<Checked> checked = new ArrayList<Checked>();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            // bounded, so that only a few batches of the file are in memory at once
+            Deque<Future<List<Checked>>> pending = new ArrayDeque<Future<List<Checked>>>();
+            LdifRecordReader in = new LdifRecordReader(ldif);
+            try {
+                List<LdifRecordReader.Record> batch;
+                while (!(batch = in.readBatch()).isEmpty()) {
+                    pending.add(workers.submit(new Check(batch, schemaManager)));
+                    if (pending.size() > threads * 2) {
+                        collect(get(pending.remove()), problems, lines, checked);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            while (!pending.isEmpty()) {
+                collect(get(pending.remove()), problems, lines, checked);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        for (Checked entry : checked) {
+            Dn parent = entry.dn.getParent();
+            boolean provided = parent.isEmpty() || parent.equals(suffixDn) ||
+                !parent.isDescendantOf(suffixDn);
+            if (!provided && !lines.containsKey(parent.getNormName())) {
+                problems.add(new Problem(entry.line, entry.dn.getName(),
+                    "has no parent in the directory or in " + ldif.getName()));
+            }
+        }
+
+        Collections.sort(problems);
+        return new Report(checked.size(), problems, System.currentTimeMillis() - startedAt);
+    }
+
+    private void collect(
+        List<Checked> results, List<Problem> problems, Map<String, Integer> lines, List<Checked> checked
+    ) {
+        for (Checked result : results) {
+            problems.addAll(result.problems);
+            if (result.dn == null) continue;
+
+            Integer first = lines.get(result.dn.getNormName());
+            if (first != null) {
+                problems.add(new Problem(result.line, result.dn.getName(),
+                    "is already in the LDIF at line " + first));
+            } else {
+                lines.put(result.dn.getNormName(), result.line);
+                checked.add(result);
+            }
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * The outcome for one record: its DN, if it could be read, and anything wrong with it.
+     */
+    private static class Checked {
+        private final int line;
+        private final Dn dn;
+        private final List<Problem> problems = new ArrayList<Problem>();
+
+        public Checked(int line, Dn dn) {
+            this.line = line;
+            this.dn = dn;
+        }
+    }
+
+    private static class Check implements Callable<List<Checked>> {
+        private final List<LdifRecordReader.Record> records;
+        private final SchemaManager schemaManager;
+
+        public Check(List<LdifRecordReader.Record> records, SchemaManager schemaManager) {
+            this.records = records;
+            this.schemaManager = schemaManager;
+        }
+
+        public List<Checked> call() throws Exception {
+            List<Checked> results = new ArrayList<Checked>(records.size());
+            for (LdifRecordReader.Record record : records) {
+                results.addAll(check(record));
+            }
+            return results;
+        }
+
+        private List<Checked> check(LdifRecordReader.Record record) throws Exception {
+            int line = record.getLine();
+            List<LdifEntry> ldifEntries;
+            LdifReader reader = new LdifReader();
+            try {
+                // the version line keeps the reader from logging that it assumed one
+                String text = record.getText().startsWith("version:")
+                    ? record.getText() : "version: 1\n" + record.getText();
+                ldifEntries = reader.parseLdif(text);
+            } catch (LdapException e) {
+                Checked failed = new Checked(line, null);
+                failed.problems.add(new Problem(line, null, "is not valid LDIF: " + Main.oneLine(e)));
+                return Collections.singletonList(failed);
+            } finally {
+                reader.close();
+            }
+
+            List<Checked> results = new ArrayList<Checked>(ldifEntries.size());
+            for (LdifEntry ldifEntry : ldifEntries) {
+                results.add(check(line, ldifEntry));
+            }
+            return results;
+        }
+
+        private Checked check(int line, LdifEntry ldifEntry) {
+            String name = ldifEntry.getDn().getName();
+            if (ldifEntry.isChangeDelete() || ldifEntry.isChangeModify() || ldifEntry.isChangeModDn() ||
+                ldifEntry.isChangeModRdn()) {
+                Checked result = new Checked(line, null);
+                result.problems.add(new Problem(line, name,
+                    "is a " + ldifEntry.getChangeType() + " record; only entries can be loaded"));
+                return result;
+            }
+
+            Dn dn;
+            try {
+                dn = new Dn(schemaManager, name);
+            } catch (LdapException e) {
+                Checked result = new Checked(line, null);
+                result.problems.add(new Problem(line, name, "has an invalid DN: " + Main.oneLine(e)));
+                return result;
+            }
+
+            // still counts as present, so that its children aren't reported as orphans too
+            Checked result = new Checked(line, dn);
+            Entry entry;
+            try {
+                entry = new DefaultEntry(schemaManager, ldifEntry.getEntry());
+                entry.setDn(dn);
+            } catch (Exception e) {
+                result.problems.add(new Problem(line, name, Main.oneLine(e)));
+                return result;
+            }
+
+            for (String message : checkSchema(entry)) {
+                result.problems.add(new Problem(line, name, message));
+            }
+            return result;
+        }
+
+        private List<String> checkSchema(Entry entry) {
+            List<String> messages = new ArrayList<String>();
+
+            Attribute objectClasses = entry.get(SchemaConstants.OBJECT_CLASS_AT);
+            if (objectClasses == null) {
+                messages.add("has no objectClass");
+                return messages;
+            }
+            Set<ObjectClass> classes = new HashSet<ObjectClass>();
+            boolean extensible = false;
+            for (Value<?> value : objectClasses) {
+                try {
+                    ObjectClass objectClass = schemaManager.lookupObjectClassRegistry(value.getString());
+                    addWithSuperiors(objectClass, classes);
+                    extensible |= SchemaConstants.EXTENSIBLE_OBJECT_OC.equalsIgnoreCase(objectClass.getName());
+                } catch (LdapException e) {
+                    messages.add("has unknown objectClass " + value.getString());
+                }
+            }
+
+            boolean structural = false;
+            Set<AttributeType> required = new HashSet<AttributeType>();
+            Set<AttributeType> allowed = new HashSet<AttributeType>();
+            for (ObjectClass objectClass : classes) {
+                structural |= objectClass.isStructural();
+                required.addAll(objectClass.getMustAttributeTypes());
+                allowed.addAll(objectClass.getMayAttributeTypes());
+            }
+            allowed.addAll(required);
+            if (!structural) {
+                messages.add("has no structural objectClass");
+            }
+
+            for (AttributeType attributeType : required) {
+                if (!entry.containsAttribute(attributeType)) {
+                    messages.add("is missing required attribute " + attributeType.getName());
+                }
+            }
+
+            for (Attribute attribute : entry) {
+                AttributeType attributeType = attribute.getAttributeType();
+                if (!extensible && attributeType.isUser() && !isAllowed(attributeType, allowed)) {
+                    messages.add("has attribute " + attribute.getUpId() +
+                        ", which its objectClasses don't allow");
+                }
+                if (attributeType.isSingleValued() && attribute.size() > 1) {
+                    messages.add("has " + attribute.size() + " values for single-valued attribute " +
+                        attribute.getUpId());
+                }
+                SyntaxChecker syntaxChecker = attributeType.getSyntax().getSyntaxChecker();
+                for (Value<?> value : attribute) {
+                    if (!syntaxChecker.isValidSyntax(value.getValue())) {
+                        messages.add("has a value for " + attribute.getUpId() +
+                            " which doesn't match its syntax (" + attributeType.getSyntaxName() + ")");
+                        break;
+                    }
+                }
+            }
+
+            for (Ava ava : entry.getDn().getRdn()) {
+                if (!entry.contains(ava.getType(), ava.getValue().getString())) {
+                    messages.add("doesn't have its RDN value " + ava.getName() + " as an attribute");
+                }
+            }
+            return messages;
+        }
+
+        private static void addWithSuperiors(ObjectClass objectClass, Set<ObjectClass> classes) {
+            if (classes.add(objectClass)) {
+                for (ObjectClass superior : objectClass.getSuperiors()) {
+                    addWithSuperiors(superior, classes);
+                }
+            }
+        }
+
+        /**
+         * An attribute is allowed if it or one of its supertypes is.
+         */
+        private static boolean isAllowed(AttributeType attributeType, Set<AttributeType> allowed) {
+            for (AttributeType type = attributeType; type != null; type = type.getSuperior()) {
+                if (allowed.contains(type)) return true;
+            }
+            return false;
+        }
+    }
+
+    public static class Problem implements Comparable<Problem> {
+        private final int line;
+        private final String dn;
+        private final String message;
+
+        public Problem(int line, String dn, String message) {
+            this.line = line;
+            this.dn = dn;
+            this.message = message;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int compareTo(Problem other) {
+            return line < other.line ? -1 : (line == other.line ? 0 : 1);
+        }
+
+        @Override
+        public String toString() {
+            return "line " + line + ": " + (dn == null ? "" : "Entry " + dn + ' ') + message;
+        }
+    }
+
+    public static class Report {
+        private final int entries;
+        private final List<Problem> problems;
+        private final long millis;
+
+        public Report(int entries, List<Problem> problems, long millis) {
+            this.entries = entries;
+            this.problems = problems;
+            this.millis = millis;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public List<Problem> getProblems() {
+            return problems;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Ava;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Puts a running {@link Server} under load over LDAP, i.e., through the same transport as its
+ * real clients.  Each of several concurrent connections repeatedly picks an operation from a
+ * weighted mix and runs it, for a fixed time; then the throughput and latency percentiles of
+ * each kind of operation are reported.
+ * <p>
+ * The targets are sampled from the LDIF the server was loaded with, so that the workload
+ * matches the data:
+ * <ul>
+ *   <li><code>bind</code> binds as an entry with a clear-text <code>userPassword</code>, or as
+ *     the admin if there are none;</li>
+ *   <li><code>subtree</code> searches everything under an entry's parent, returning at most
+ *     {@value #SUBTREE_SIZE_LIMIT} entries;</li>
+ *   <li><code>equality</code> searches the whole domain for an entry by its RDN, as
+ *     applications look people up by uid;</li>
+ *   <li><code>modify</code> replaces one of an entry's attributes with the values it already
+ *     has, so the data does not change.</li>
+ * </ul>
+ * Each connection binds as the admin before it starts.  Since a bind changes the identity of
+ * the connection, later operations may run as the entry which was bound.
+ */
+class LoadTest {
+    enum Operation { BIND, SUBTREE, EQUALITY, MODIFY }
+
+    public static final String DEFAULT_MIX = "bind=1,subtree=1,equality=6,modify=2";
+
+    /**
+     * The most entries of each kind to sample from the LDIF.
+     */
+    private static final int MAX_TARGETS = 10000;
+    private static final long SUBTREE_SIZE_LIMIT = 100;
+    private static final String ADMIN_DN = "uid=admin,ou=system";
+    private static final String ADMIN_PASSWORD = "secret";
+
+    private final Logger log = Logger.getLogger(getClass());
+
+    private final int port;
+    private final Dn domain;
+    private final Map<Operation, Integer> weights;
+    private final int totalWeight;
+    private int connections = 16;
+    private int seconds = 30;
+
+    private final Sample<String[]> credentials = new Sample<String[]>();
+    private final Sample<String> subtreeBases = new Sample<String>();
+    private final Sample<String> equalityFilters = new Sample<String>();
+    private final Sample<Modify> modifies = new Sample<Modify>();
+    private final Set<String> parents = new HashSet<String>();
+
+    /**
+     * @param mix the weight of each operation, e.g., <code>bind=1,equality=4</code>.  Operations
+     *   which are left out are not run.
+     */
+    public LoadTest(int port, String domain, String mix) throws LdapException {
+        this.port = port;
+        this.domain = new Dn(domain);
+        this.weights = parseMix(mix);
+        int total = 0;
+        for (int weight : weights.values()) {
+            total += weight;
+        }
+        this.totalWeight = total;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public void setSeconds(int seconds) {
+        this.seconds = seconds;
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<Operation, Integer>(Operation.class);
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split("=");
+            try {
+                Operation operation = Operation.valueOf(nameAndWeight[0].trim().toUpperCase());
+                int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1].trim()) : 1;
+                if (weight > 0) weights.put(operation, weight);
+            } catch (IllegalArgumentException e) {
+                throw new LadleFatalException("Bad load test mix \"" + part + "\"; expected " +
+                    "comma-separated operation=weight with operations bind, subtree, equality " +
+                    "or modify");
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new LadleFatalException("The load test mix \"" + mix + "\" has no operations");
+        }
+        return weights;
+    }
+
+    ////// SAMPLING
+
+    /**
+     * Chooses the targets for each operation from the entries in the LDIF, which may be
+     * {@link CompiledLdif compiled}.
+     *
+     * @param server the running server, whose schema the entries are read against
+     */
+    public void sample(File ldif, Server server) throws Exception {
+        server.readLDIF(ldif.getPath(), new LdifPipeline.Sink() {
+            public boolean add(Entry entry) throws Exception {
+                sample(entry);
+                return true;
+            }
+
+            public boolean exists(Dn dn) {
+                // the order doesn't matter for sampling
+                return true;
+            }
+        });
+
+        if (equalityFilters.isEmpty()) {
+            throw new LadleFatalException("There are no entries in " + ldif + " to load test with");
+        }
+        if (credentials.isEmpty()) {
+            credentials.add(new String[] { ADMIN_DN, ADMIN_PASSWORD });
+        }
+        if (subtreeBases.isEmpty()) {
+            subtreeBases.add(domain.getName());
+        }
+        if (modifies.isEmpty() && weights.containsKey(Operation.MODIFY)) {
+            throw new LadleFatalException("No entry in " + ldif + " has an attribute to modify");
+        }
+    }
+
+    private void sample(Entry entry) throws Exception {
+        Dn dn = entry.getDn();
+        Rdn rdn = dn.getRdn();
+
+        equalityFilters.add('(' + rdn.getType() + '=' +
+            FilterEncoder.encodeFilterValue(rdn.getValue().getString()) + ')');
+
+        Dn parent = dn.getParent();
+        if (parent.size() >= domain.size() && parents.add(parent.getName())) {
+            subtreeBases.add(parent.getName());
+        }
+
+        Attribute password = entry.get(SchemaConstants.USER_PASSWORD_AT);
+        if (password != null) {
+            String clear = new String(password.get().getBytes(), "UTF-8");
+            // hashed passwords can't be bound with
+            if (!clear.startsWith("{")) {
+                credentials.add(new String[] { dn.getName(), clear });
+            }
+        }
+
+        Set<String> rdnTypes = new HashSet<String>();
+        for (Ava ava : rdn) {
+            rdnTypes.add(ava.getType().toLowerCase());
+        }
+        for (Attribute attribute : entry) {
+            String id = attribute.getUpId().toLowerCase();
+            if (!rdnTypes.contains(id) && !id.equalsIgnoreCase(SchemaConstants.OBJECT_CLASS_AT) &&
+                !id.equalsIgnoreCase(SchemaConstants.USER_PASSWORD_AT)) {
+                modifies.add(new Modify(dn.getName(), attribute));
+                break;
+            }
+        }
+    }
+
+    ////// RUNNING
+
+    /**
+     * Runs the load test against the server, which must already be started.
+     *
+     * @return the statistics for each operation in the mix
+     */
+    public Results run() throws Exception {
+        log.info("Load testing port " + port + " from " + connections + " connections for " +
+            seconds + "s with mix " + weights);
+
+        ExecutorService clients = Executors.newFixedThreadPool(connections);
+        try {
+            CountDownLatch connected = new CountDownLatch(connections);
+            List<Future<Results>> running = new ArrayList<Future<Results>>();
+            for (int i = 0; i < connections; i++) {
+                running.add(clients.submit(new Client(i, connected)));
+            }
+
+            Results results = new Results(weights.keySet(), seconds);
+            for (Future<Results> client : running) {
+                try {
+                    results.add(client.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                    throw e;
+                }
+            }
+            return results;
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private Operation pick(Random random) {
+        int choice = random.nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            choice -= weight.getValue();
+            if (choice < 0) return weight.getKey();
+        }
+        throw new IllegalStateException("Unreachable");
+    }
+
+    private class Client implements Callable<Results> {
+        private final Random random;
+        private final CountDownLatch connected;
+
+        public Client(int index, CountDownLatch connected) {
+            this.random = new Random(index);
+            this.connected = connected;
+        }
+
+        public Results call() throws Exception {
+            Results results = new Results(weights.keySet(), seconds);
+            LdapNetworkConnection connection = new LdapNetworkConnection("localhost", port);
+            try {
+                connection.connect();
+                connection.bind(ADMIN_DN, ADMIN_PASSWORD);
+
+                // start together, so that every connection is busy for the whole time
+                connected.countDown();
+                connected.await();
+                long until = System.nanoTime() + seconds * 1000000000L;
+                while (System.nanoTime() < until) {
+                    Operation operation = pick(random);
+                    long startedAt = System.nanoTime();
+                    boolean succeeded;
+                    try {
+                        succeeded = perform(operation, connection);
+                    } catch (LdapException e) {
+                        log.debug(operation + " failed", e);
+                        succeeded = false;
+                    }
+                    results.record(operation, (System.nanoTime() - startedAt) / 1000, succeeded);
+                }
+            } finally {
+                connected.countDown();
+                connection.close();
+            }
+            return results;
+        }
+
+        private boolean perform(Operation operation, LdapNetworkConnection connection) throws Exception {
+            switch (operation) {
+                case BIND:
+                    String[] bindAs = credentials.pick(random);
+                    connection.bind(bindAs[0], bindAs[1]);
+                    return true;
+                case SUBTREE:
+                    return search(connection, subtreeBases.pick(random),
+                        "(" + SchemaConstants.OBJECT_CLASS_AT + "=*)", SUBTREE_SIZE_LIMIT);
+                case EQUALITY:
+                    return search(connection, domain.getName(), equalityFilters.pick(random), 0);
+                case MODIFY:
+                    Modify modify = modifies.pick(random);
+                    connection.modify(modify.dn, new DefaultModification(
+                        ModificationOperation.REPLACE_ATTRIBUTE, modify.attribute));
+                    return true;
+                default:
+                    throw new IllegalStateException("Unknown operation " + operation);
+            }
+        }
+
+        private boolean search(
+            LdapNetworkConnection connection, String base, String filter, long sizeLimit
+        ) throws Exception {
+            SearchRequest request = new SearchRequestImpl();
+            request.setBase(new Dn(base));
+            request.setFilter(filter);
+            request.setScope(SearchScope.SUBTREE);
+            request.setSizeLimit(sizeLimit);
+            SearchCursor cursor = connection.search(request);
+            try {
+                while (cursor.next()) {
+                    cursor.get();
+                }
+                ResultCodeEnum result = cursor.getSearchResultDone().getLdapResult().getResultCode();
+                return result == ResultCodeEnum.SUCCESS || result == ResultCodeEnum.SIZE_LIMIT_EXCEEDED;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static class Modify {
+        private final String dn;
+        private final Attribute attribute;
+
+        public Modify(String dn, Attribute attribute) {
+            this.dn = dn;
+            this.attribute = attribute;
+        }
+    }
+
+    /**
+     * Up to {@link #MAX_TARGETS} items chosen uniformly from however many are offered
+     * (reservoir sampling), so that large LDIFs needn't be held in memory.
+     */
+    private static class Sample<T> {
+        private final List<T> items = new ArrayList<T>();
+        private final Random random = new Random(0);
+        private long offered = 0;
+
+        public void add(T item) {
+            offered++;
+            if (items.size() < MAX_TARGETS) {
+                items.add(item);
+            } else {
+                long slot = (long) (random.nextDouble() * offered);
+                if (slot < MAX_TARGETS) items.set((int) slot, item);
+            }
+        }
+
+        public boolean isEmpty() {
+            return items.isEmpty();
+        }
+
+        public T pick(Random random) {
+            return items.get(random.nextInt(items.size()));
+        }
+    }
+
+    /**
+     * Counts, errors and latencies for each operation.  Not thread-safe; each client keeps its
+     * own and they are added up at the end.
+     */
+    static class Results {
+        private final Map<Operation, LatencyHistogram> latencies =
+            new EnumMap<Operation, LatencyHistogram>(Operation.class);
+        private final Map<Operation, Long> errors = new EnumMap<Operation, Long>(Operation.class);
+        private final int seconds;
+
+        public Results(Set<Operation> operations, int seconds) {
+            this.seconds = seconds;
+            for (Operation operation : operations) {
+                latencies.put(operation, new LatencyHistogram());
+                errors.put(operation, 0L);
+            }
+        }
+
+        public void record(Operation operation, long micros, boolean succeeded) {
+            latencies.get(operation).record(micros);
+            if (!succeeded) errors.put(operation, errors.get(operation) + 1);
+        }
+
+        public void add(Results other) {
+            for (Operation operation : latencies.keySet()) {
+                latencies.get(operation).add(other.latencies.get(operation));
+                errors.put(operation, errors.get(operation) + other.errors.get(operation));
+            }
+        }
+
+        /**
+         * Renders the results as a table, one row per operation plus the total, with latencies
+         * in microseconds.
+         */
+        public List<String> toTable() {
+            List<String> lines = new ArrayList<String>();
+            lines.add(String.format("%-10s %10s %10s %8s %9s %9s %9s",
+                "operation", "count", "ops/s", "errors", "p50_us", "p99_us", "p999_us"));
+            LatencyHistogram total = new LatencyHistogram();
+            long totalErrors = 0;
+            for (Operation operation : latencies.keySet()) {
+                LatencyHistogram latency = latencies.get(operation);
+                lines.add(row(operation.name().toLowerCase(), latency, errors.get(operation)));
+                total.add(latency);
+                totalErrors += errors.get(operation);
+            }
+            lines.add(row("total", total, totalErrors));
+            return lines;
+        }
+
+        private String row(String name, LatencyHistogram latency, long errors) {
+            return String.format("%-10s %10d %10.1f %8d %9d %9d %9d",
+                name, latency.getCount(), (double) latency.getCount() / seconds, errors,
+                latency.percentile(50), latency.percentile(99), latency.percentile(99.9));
+        }
+    }
+}
@@ -15,11 +15,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The executable front-end to {@link Server}.  Uses stdin/stdout as a control channel, with
@@ -30,11 +33,19 @@ import java.util.List;
  * @author Rhett Sutphin
  */
 public class Main {
+    /**
+     * The control channel.  Everything else written to stdout (ApacheDS dumps its RDN index
+     * there when entries are moved) goes to stderr instead.
+     */
+    private static final PrintStream control = System.out;
+
     public static void main(String[] args) {
+        System.setOut(System.err);
         configureLog4j();
 
         CommandLine commandLine = parseArgs(args);
 
+        Server server = null;
         try {
             if (commandLine.hasOption('F')) {
                 behaveBadly(commandLine.getOptionValue('F'));
@@ -48,21 +59,93 @@ public class Main {
             }
 
             final Server s = new Server(
-                new Integer(commandLine.getOptionValue("p")),
+                Integer.parseInt(commandLine.getOptionValue("p")),
                 commandLine.getOptionValue("d"),
                 new File(commandLine.getOptionValue("l")),
                 new File(commandLine.getOptionValue('t')),
                 !commandLine.hasOption('A'), schemaFileNames);
+            s.setBulkLoad(commandLine.hasOption('B'));
+            if (commandLine.hasOption('L')) {
+                s.setLoadThreads(Integer.parseInt(commandLine.getOptionValue('L')));
+            }
+            if (commandLine.hasOption('C')) {
+                s.setSnapshotCacheDir(new File(commandLine.getOptionValue('C')));
+            }
+            if (commandLine.hasOption('M')) {
+                s.setStorage(parseStorage(commandLine.getOptionValue('M')));
+            }
+            s.setResettable(commandLine.hasOption('R'));
+            if (commandLine.hasOption('H')) {
+                s.setSharedSchemaDir(new File(commandLine.getOptionValue('H')));
+            }
+            if (commandLine.hasOption('I')) {
+                s.setIndexedAttributes(Arrays.asList(commandLine.getOptionValue('I').split(",")));
+            }
+            if (commandLine.hasOption('K')) {
+                s.setIndexCacheSize(Integer.parseInt(commandLine.getOptionValue('K')));
+            }
+            s.setIndexAdvisor(commandLine.hasOption('V'));
+            if (commandLine.hasOption('N')) {
+                s.setTransportProcessors(Integer.parseInt(commandLine.getOptionValue('N')));
+            }
+            if (commandLine.hasOption('W')) {
+                s.setTransportWorkers(Integer.parseInt(commandLine.getOptionValue('W')));
+            }
+            if (commandLine.hasOption('G')) {
+                s.setBacklog(Integer.parseInt(commandLine.getOptionValue('G')));
+            }
+            s.setTcpNoDelay(!commandLine.hasOption('Y'));
+            if (commandLine.hasOption('Z')) {
+                s.setMaxSizeLimit(Long.parseLong(commandLine.getOptionValue('Z')));
+            }
+            if (commandLine.hasOption('T')) {
+                s.setMaxTimeLimit(Integer.parseInt(commandLine.getOptionValue('T')));
+            }
+            if (commandLine.hasOption('E')) {
+                s.setEntryCacheSize(Integer.parseInt(commandLine.getOptionValue('E')));
+            }
+            if (commandLine.hasOption('D')) {
+                s.setDnCacheSize(Integer.parseInt(commandLine.getOptionValue('D')));
+            }
+            if (commandLine.hasOption('X')) {
+                s.setAliasCacheSize(Integer.parseInt(commandLine.getOptionValue('X')));
+            }
+            if (commandLine.hasOption('P')) {
+                s.setPartitionCacheSize(Integer.parseInt(commandLine.getOptionValue('P')));
+            }
+            s.setWarm(commandLine.hasOption('U'));
+            s.setEphemeral(commandLine.hasOption('e'));
+            s.setPhaseListener(new Server.PhaseListener() {
+                public void phaseCompleted(String phase, long millis) {
+                    control.println("PHASE " + phase + ' ' + millis);
+                }
+            });
+
+            if (commandLine.hasOption('c')) {
+                long startedAt = System.currentTimeMillis();
+                int count = s.compileLDIF(new File(commandLine.getOptionValue('c')));
+                control.println("COMPILED " + count + ' ' + (System.currentTimeMillis() - startedAt));
+                System.exit(0);
+            }
+            if (commandLine.hasOption('v')) {
+                System.exit(validate(s) ? 0 : 1);
+            }
 
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
                 public void run() {
                     s.stop();
-                    System.out.println("STOPPED");
+                    control.println("STOPPED");
                 }
             }));
 
             s.start();
-            System.out.println("STARTED");
+            server = s;
+            control.println("STARTED");
+
+            if (commandLine.hasOption('J')) {
+                runLoadTest(commandLine, s);
+                System.exit(0); // shutdown hook will handle stopping everything
+            }
         } catch (LadleFatalException lfe) {
             reportError(lfe);
             System.exit(1);
@@ -74,21 +157,172 @@ public class Main {
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
         String line;
         try {
-            //noinspection LoopStatementThatDoesntLoop
             while ((line = in.readLine()) != null) {
                 if ("STOP".equals(line)) {
                     System.exit(0); // shutdown hook will handle stopping everything
+                } else if ("RESET".equals(line)) {
+                    reset(server, "reset".equals(commandLine.getOptionValue('F')));
+                } else if ("STATS".equals(line)) {
+                    control.println("STATS " + server.stats());
+                } else if (line.startsWith("ADD_PARTITION\t")) {
+                    addPartition(server, line);
+                } else if (line.startsWith("REMOVE_PARTITION\t")) {
+                    removePartition(server, line);
+                } else if (line.startsWith("LOAD\t") || line.startsWith("APPLY\t")) {
+                    loadOrApply(server, line);
                 } else {
-                    System.out.println("FATAL: unknown control message \"" + line + '"');
+                    control.println("FATAL: unknown control message \"" + line + '"');
                     System.exit(9);
                 }
             }
-        } catch (IOException e) {
+        } catch (LadleFatalException lfe) {
+            reportError(lfe);
+            System.exit(1);
+        } catch (Exception e) {
             reportError(e);
             System.exit(3);
         }
     }
 
+    /**
+     * Handles <code>RESET</code>; replies <code>RESET OK</code> or <code>RESET FAILED
+     * &lt;reason&gt;</code>.  A failed reset leaves the server running and still tracking its
+     * changes, so that the reset can be retried.
+     */
+    private static void reset(Server server, boolean failForTesting) {
+        try {
+            if (failForTesting) {
+                throw new IllegalStateException("Expected failure for testing");
+            }
+            server.reset();
+            control.println("RESET OK");
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            control.println("RESET FAILED " + oneLine(e));
+        }
+    }
+
+    /**
+     * Handles <code>ADD_PARTITION &lt;id&gt; suffix=&lt;dn&gt; ldif=&lt;file&gt;
+     * [schemas=&lt;file,...&gt;] [anonymous=false]</code>, with the fields separated by tabs.
+     * Replies <code>ADD_PARTITION OK &lt;id&gt; &lt;entry count&gt;</code>.  A partition which
+     * can't be added is reported with <code>ADD_PARTITION FAILED</code>, leaving the rest of the
+     * server running.
+     */
+    private static void addPartition(Server server, String line) {
+        String[] fields = line.split("\t");
+        String id = fields[1];
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 2; i < fields.length; i++) {
+            int eq = fields[i].indexOf('=');
+            params.put(fields[i].substring(0, eq), fields[i].substring(eq + 1));
+        }
+
+        List<String> schemaFileNames;
+        if (params.containsKey("schemas")) {
+            schemaFileNames = Arrays.asList(params.get("schemas").split(","));
+        } else {
+            schemaFileNames = Collections.emptyList();
+        }
+
+        try {
+            int count = server.addTenant(id, params.get("suffix"), new File(params.get("ldif")),
+                schemaFileNames, !"false".equals(params.get("anonymous")));
+            control.println("ADD_PARTITION OK " + id + ' ' + count);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            control.println("ADD_PARTITION FAILED " + id + ' ' + oneLine(e));
+        }
+    }
+
+    /**
+     * Handles <code>REMOVE_PARTITION &lt;id&gt;</code>; replies <code>REMOVE_PARTITION OK
+     * &lt;id&gt;</code> or <code>REMOVE_PARTITION FAILED &lt;id&gt; &lt;reason&gt;</code>.
+     */
+    private static void removePartition(Server server, String line) {
+        String id = line.split("\t")[1];
+        try {
+            server.removeTenant(id);
+            control.println("REMOVE_PARTITION OK " + id);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            control.println("REMOVE_PARTITION FAILED " + id + ' ' + oneLine(e));
+        }
+    }
+
+    /**
+     * Handles <code>LOAD &lt;file&gt;</code> and <code>APPLY &lt;file&gt;</code>, with the two
+     * fields separated by a tab.  LOAD adds the entries in the LDIF; APPLY applies its change
+     * records.  Replies <code>&lt;command&gt; OK &lt;count&gt; &lt;milliseconds&gt;</code> or
+     * <code>&lt;command&gt; FAILED &lt;reason&gt;</code>.
+     */
+    private static void loadOrApply(Server server, String line) {
+        String[] fields = line.split("\t", 2);
+        String command = fields[0];
+        long startedAt = System.currentTimeMillis();
+        try {
+            int count = "LOAD".equals(command) ? server.load(fields[1]) : server.apply(fields[1]);
+            control.println(command + " OK " + count + ' ' + (System.currentTimeMillis() - startedAt));
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            control.println(command + " FAILED " + oneLine(e));
+        }
+    }
+
+    /**
+     * Validates the server's LDIF without starting it.  Prints <code>INVALID &lt;problem&gt;</code>
+     * for each problem found, in line order, and then <code>VALIDATED &lt;entry count&gt;
+     * &lt;problem count&gt; &lt;milliseconds&gt;</code>.
+     *
+     * @return whether the LDIF is valid
+     */
+    private static boolean validate(Server server) throws Exception {
+        long startedAt = System.currentTimeMillis();
+        LdifValidator.Report report = server.validateLDIF();
+        for (LdifValidator.Problem problem : report.getProblems()) {
+            control.println("INVALID " + problem);
+        }
+        control.println("VALIDATED " + report.getEntries() + ' ' + report.getProblems().size() +
+            ' ' + (System.currentTimeMillis() - startedAt));
+        return report.isValid();
+    }
+
+    /**
+     * Runs a {@link LoadTest} against the just-started server and prints the results table to
+     * stdout.  The mix is the optional argument to <code>--load-test</code>.
+     */
+    private static void runLoadTest(CommandLine commandLine, Server server) throws Exception {
+        LoadTest loadTest = new LoadTest(
+            Integer.parseInt(commandLine.getOptionValue('p')), commandLine.getOptionValue('d'),
+            commandLine.getOptionValue('J', LoadTest.DEFAULT_MIX));
+        if (commandLine.hasOption('Q')) {
+            loadTest.setConnections(Integer.parseInt(commandLine.getOptionValue('Q')));
+        }
+        if (commandLine.hasOption('O')) {
+            loadTest.setSeconds(Integer.parseInt(commandLine.getOptionValue('O')));
+        }
+        loadTest.sample(new File(commandLine.getOptionValue('l')), server);
+        for (String line : loadTest.run().toTable()) {
+            control.println(line);
+        }
+    }
+
+    /**
+     * ApacheDS messages often span several lines, which would break the control channel.  Also
+     * used for the validator's INVALID lines.
+     */
+    static String oneLine(Exception e) {
+        return String.valueOf(e.getMessage()).replaceAll("\\s+", " ").trim();
+    }
+
+    private static Server.Storage parseStorage(String name) {
+        try {
+            return Server.Storage.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new LadleFatalException("Unknown storage type \"" + name + '"');
+        }
+    }
+
     @SuppressWarnings({ "InfiniteLoopStatement" })
     private static void behaveBadly(String desiredFailureType) throws InterruptedException {
         if ("before_start".equals(desiredFailureType)) {
@@ -130,6 +364,114 @@ public class Main {
                 withLongOpt("custom-schemas").hasArg().
                 withDescription("Specify one or more custom schemas (comma-separated)").
                 create('S'))
+            .addOption(OptionBuilder.
+                withLongOpt("bulk-load").
+                withDescription("Write the LDIF data directly into the partition").
+                create('B'))
+            .addOption(OptionBuilder.
+                withLongOpt("load-threads").hasArg().
+                withDescription("Specify the number of threads parsing the LDIF data").
+                create('L'))
+            .addOption(OptionBuilder.
+                withLongOpt("snapshot-cache").hasArg().
+                withDescription("Specify a directory in which to cache loaded partitions").
+                create('C'))
+            .addOption(OptionBuilder.
+                withLongOpt("shared-schema").hasArg().
+                withDescription("Specify a directory in which to share one extracted schema").
+                create('H'))
+            .addOption(OptionBuilder.
+                withLongOpt("storage").hasArg().
+                withDescription("Specify the partition storage: jdbm (default) or memory").
+                create('M'))
+            .addOption(OptionBuilder.
+                withLongOpt("resettable").
+                withDescription("Snapshot the loaded data so that it can be restored with RESET").
+                create('R'))
+            .addOption(OptionBuilder.
+                withLongOpt("indexes").hasArg().
+                withDescription("Specify the attributes to index (comma-separated)").
+                create('I'))
+            .addOption(OptionBuilder.
+                withLongOpt("index-cache-size").hasArg().
+                withDescription("Specify the number of entries cached by each JDBM index").
+                create('K'))
+            .addOption(OptionBuilder.
+                withLongOpt("index-advisor").
+                withDescription("Report the unindexed attributes used in searches on shutdown").
+                create('V'))
+            .addOption(OptionBuilder.
+                withLongOpt("transport-processors").hasArg().
+                withDescription("Specify the number of NIO processors for LDAP connections").
+                create('N'))
+            .addOption(OptionBuilder.
+                withLongOpt("transport-workers").hasArg().
+                withDescription("Specify the number of threads executing LDAP requests").
+                create('W'))
+            .addOption(OptionBuilder.
+                withLongOpt("backlog").hasArg().
+                withDescription("Specify the number of pending connections to queue").
+                create('G'))
+            .addOption(OptionBuilder.
+                withLongOpt("no-tcp-nodelay").
+                withDescription("Leave Nagle's algorithm enabled on LDAP connections").
+                create('Y'))
+            .addOption(OptionBuilder.
+                withLongOpt("max-size-limit").hasArg().
+                withDescription("Specify the most entries a search may return (0 for no limit)").
+                create('Z'))
+            .addOption(OptionBuilder.
+                withLongOpt("max-time-limit").hasArg().
+                withDescription("Specify the most seconds a search may take (0 for no limit)").
+                create('T'))
+            .addOption(OptionBuilder.
+                withLongOpt("entry-cache-size").hasArg().
+                withDescription("Specify the number of entries cached by each JDBM partition").
+                create('E'))
+            .addOption(OptionBuilder.
+                withLongOpt("dn-cache-size").hasArg().
+                withDescription("Specify the number of parsed DNs to cache").
+                create('D'))
+            .addOption(OptionBuilder.
+                withLongOpt("alias-cache-size").hasArg().
+                withDescription("Specify the number of alias lookups to cache").
+                create('X'))
+            .addOption(OptionBuilder.
+                withLongOpt("partition-cache-size").hasArg().
+                withDescription("Specify the number of records cached by each JDBM partition").
+                create('P'))
+            .addOption(OptionBuilder.
+                withLongOpt("warm").
+                withDescription("Read every entry once before reporting that the server started").
+                create('U'))
+            .addOption(OptionBuilder.
+                withLongOpt("load-test").hasOptionalArg().
+                withDescription("After starting, run a load test and exit.  The mix gives the " +
+                    "weight of each operation (default " + LoadTest.DEFAULT_MIX + ")").
+                create('J'))
+            .addOption(OptionBuilder.
+                withLongOpt("load-connections").hasArg().
+                withDescription("Specify the number of concurrent connections for --load-test").
+                create('Q'))
+            .addOption(OptionBuilder.
+                withLongOpt("load-seconds").hasArg().
+                withDescription("Specify how long --load-test runs for").
+                create('O'))
+            .addOption(OptionBuilder.
+                withLongOpt("compile-ldif").hasArg().
+                withDescription("Instead of starting, compile the LDIF and custom schemas " +
+                    "into a binary file which loads faster").
+                create('c'))
+            .addOption(OptionBuilder.
+                withLongOpt("ephemeral").
+                withDescription("Skip the partitions' sync after each write, and stop " +
+                    "without waiting for the data to be flushed and deleted").
+                create('e'))
+            .addOption(OptionBuilder.
+                withLongOpt("validate").
+                withDescription("Check every entry in the LDIF against the schema and custom " +
+                    "schemas, report all the problems and exit without starting the server").
+                create('v'))
             ;
         CommandLineParser parser = new GnuParser();
 
@@ -156,6 +498,6 @@ public class Main {
     }
 
     private static void reportError(String message) {
-        System.out.println("FATAL: " + message);
+        control.println("FATAL: " + message);
     }
 }
@@ -0,0 +1,320 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.api.ldap.model.cursor.ClosureMonitor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.filtering.EntryFilter;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An interceptor which counts and times binds, searches, adds, modifies and deletes.  It sits at
+ * the head of the chain, so latencies cover the whole of ApacheDS's processing; a search is
+ * timed until its cursor is closed, i.e., until the last entry has been sent.
+ * <p>
+ * One-level and subtree searches are also classified as indexed or as scans, the same way the
+ * ApacheDS optimizer chooses: an AND needs one indexed term, an OR needs every term indexed and
+ * anything else needs its attribute indexed.
+ */
+class OperationStats extends BaseInterceptor {
+    private final Map<String, Stat> stats = new LinkedHashMap<String, Stat>();
+    private long entriesReturned = 0;
+    private long indexedSearches = 0;
+    private long scanningSearches = 0;
+
+    public OperationStats() {
+        super("ladleOperationStats");
+        for (String operation : new String[] { "bind", "search", "add", "modify", "delete" }) {
+            stats.put(operation, new Stat());
+        }
+    }
+
+    @Override
+    public void bind(BindOperationContext bindContext) throws LdapException {
+        long startedAt = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            next(bindContext);
+            succeeded = true;
+        } finally {
+            record("bind", startedAt, succeeded);
+        }
+    }
+
+    @Override
+    public void add(AddOperationContext addContext) throws LdapException {
+        long startedAt = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            next(addContext);
+            succeeded = true;
+        } finally {
+            record("add", startedAt, succeeded);
+        }
+    }
+
+    @Override
+    public void modify(ModifyOperationContext modifyContext) throws LdapException {
+        long startedAt = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            next(modifyContext);
+            succeeded = true;
+        } finally {
+            record("modify", startedAt, succeeded);
+        }
+    }
+
+    @Override
+    public void delete(DeleteOperationContext deleteContext) throws LdapException {
+        long startedAt = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            next(deleteContext);
+            succeeded = true;
+        } finally {
+            record("delete", startedAt, succeeded);
+        }
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        long startedAt = System.nanoTime();
+        EntryFilteringCursor cursor;
+        try {
+            cursor = next(searchContext);
+        } catch (LdapException e) {
+            record("search", startedAt, false);
+            throw e;
+        } catch (RuntimeException e) {
+            record("search", startedAt, false);
+            throw e;
+        }
+
+        // By now the rest of the chain has normalized the base DN and the filter
+        if (searchContext.getScope() != SearchScope.OBJECT && !searchContext.getDn().isEmpty()) {
+            Partition partition = directoryService.getPartitionNexus().getPartition(searchContext.getDn());
+            if (partition instanceof AbstractBTreePartition) {
+                boolean indexed = usesIndex((AbstractBTreePartition) partition, searchContext.getFilter());
+                synchronized (this) {
+                    if (indexed) {
+                        indexedSearches++;
+                    } else {
+                        scanningSearches++;
+                    }
+                }
+            }
+        }
+
+        return new TimedCursor(cursor, startedAt);
+    }
+
+    /**
+     * Whether the ApacheDS optimizer can find the candidates for the filter from an index of the
+     * partition, rather than scanning it.  Also used by {@link IndexAdvisor}.
+     */
+    static boolean usesIndex(AbstractBTreePartition partition, ExprNode node) throws LdapException {
+        if (node instanceof AndNode) {
+            for (ExprNode child : ((AndNode) node).getChildren()) {
+                if (usesIndex(partition, child)) return true;
+            }
+            return false;
+        } else if (node instanceof OrNode) {
+            for (ExprNode child : ((OrNode) node).getChildren()) {
+                if (!usesIndex(partition, child)) return false;
+            }
+            return true;
+        } else if (node instanceof LeafNode) {
+            AttributeType attributeType = ((LeafNode) node).getAttributeType();
+            return attributeType != null && partition.hasIndexOn(attributeType);
+        } else {
+            return false;
+        }
+    }
+
+    private synchronized void record(String operation, long startedAt, boolean succeeded) {
+        stats.get(operation).record((System.nanoTime() - startedAt) / 1000, succeeded);
+    }
+
+    private synchronized void searchFinished(long startedAt, long entries) {
+        record("search", startedAt, true);
+        entriesReturned += entries;
+    }
+
+    /**
+     * Renders everything recorded so far as a single-line JSON object.
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+            json.append('"').append(entry.getKey()).append("\":{")
+                .append("\"count\":").append(entry.getValue().latency.getCount())
+                .append(",\"errors\":").append(entry.getValue().errors)
+                .append(",\"latency_us\":").append(entry.getValue().latency.toJson());
+            if ("search".equals(entry.getKey())) {
+                json.append(",\"entries\":").append(entriesReturned)
+                    .append(",\"indexed\":").append(indexedSearches)
+                    .append(",\"scans\":").append(scanningSearches);
+            }
+            json.append("},");
+        }
+        json.setCharAt(json.length() - 1, '}');
+        return json.toString();
+    }
+
+    private static class Stat {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long errors = 0;
+
+        public void record(long micros, boolean succeeded) {
+            latency.record(micros);
+            if (!succeeded) errors++;
+        }
+    }
+
+    /**
+     * Counts the entries which make it through the cursor (i.e., past every other interceptor's
+     * filters) and records the search when the cursor is closed.
+     */
+    private class TimedCursor implements EntryFilteringCursor {
+        private final EntryFilteringCursor delegate;
+        private final long startedAt;
+        private long entries = 0;
+        private boolean recorded = false;
+
+        public TimedCursor(EntryFilteringCursor delegate, long startedAt) {
+            this.delegate = delegate;
+            this.startedAt = startedAt;
+        }
+
+        private boolean counted(boolean found) {
+            if (found) entries++;
+            return found;
+        }
+
+        private void finished() {
+            if (recorded) return;
+            recorded = true;
+            searchFinished(startedAt, entries);
+        }
+
+        public boolean next() throws LdapException, CursorException {
+            return counted(delegate.next());
+        }
+
+        public boolean previous() throws LdapException, CursorException {
+            return delegate.previous();
+        }
+
+        public boolean first() throws LdapException, CursorException {
+            return delegate.first();
+        }
+
+        public boolean last() throws LdapException, CursorException {
+            return delegate.last();
+        }
+
+        public void close() {
+            try {
+                delegate.close();
+            } finally {
+                finished();
+            }
+        }
+
+        public void close(Exception reason) {
+            try {
+                delegate.close(reason);
+            } finally {
+                finished();
+            }
+        }
+
+        public boolean addEntryFilter(EntryFilter filter) {
+            return delegate.addEntryFilter(filter);
+        }
+
+        public List<EntryFilter> getEntryFilters() {
+            return delegate.getEntryFilters();
+        }
+
+        public SearchOperationContext getOperationContext() {
+            return delegate.getOperationContext();
+        }
+
+        public boolean available() {
+            return delegate.available();
+        }
+
+        public void before(Entry element) throws LdapException, CursorException {
+            delegate.before(element);
+        }
+
+        public void after(Entry element) throws LdapException, CursorException {
+            delegate.after(element);
+        }
+
+        public void beforeFirst() throws LdapException, CursorException {
+            delegate.beforeFirst();
+        }
+
+        public void afterLast() throws LdapException, CursorException {
+            delegate.afterLast();
+        }
+
+        public boolean isFirst() {
+            return delegate.isFirst();
+        }
+
+        public boolean isBeforeFirst() {
+            return delegate.isBeforeFirst();
+        }
+
+        public boolean isLast() {
+            return delegate.isLast();
+        }
+
+        public boolean isAfterLast() {
+            return delegate.isAfterLast();
+        }
+
+        public boolean isClosed() {
+            return delegate.isClosed();
+        }
+
+        public Entry get() throws CursorException {
+            return delegate.get();
+        }
+
+        public void setClosureMonitor(ClosureMonitor monitor) {
+            delegate.setClosureMonitor(monitor);
+        }
+
+        public Iterator<Entry> iterator() {
+            return delegate.iterator();
+        }
+
+        public String toString(String tabs) {
+            return delegate.toString(tabs);
+        }
+    }
+}
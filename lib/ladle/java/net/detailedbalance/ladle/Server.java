@@ -1,45 +1,62 @@
 package net.detailedbalance.ladle;
 
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Statistics;
 import org.apache.commons.io.FileUtils;
-import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.registries.SchemaLoader;
-import org.apache.directory.api.ldap.model.ldif.LdifReader;
-import org.apache.directory.api.ldap.model.ldif.LdifEntry;
 import org.apache.directory.api.ldap.schemaextractor.SchemaLdifExtractor;
 import org.apache.directory.api.ldap.schemaextractor.impl.DefaultSchemaLdifExtractor;
 import org.apache.directory.api.ldap.schemaloader.LdifSchemaLoader;
 import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.DateUtils;
 import org.apache.directory.api.util.exception.Exceptions;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.DefaultDirectoryService;
 import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.api.InstanceLayout;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.schema.SchemaPartition;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
 import org.apache.directory.server.core.partition.ldif.LdifPartition;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
 import org.apache.log4j.Logger;
 
 import javax.naming.Context;
 import javax.naming.NamingException;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.UUID;
@@ -56,6 +73,34 @@ import java.util.UUID;
  * http://svn.apache.org/repos/asf/directory/sandbox/kayyagari/embedded-sample-trunk/src/main/java/org/apache/directory/seserver/EmbeddedADSVerTrunk.java
  */
 public class Server {
+    /**
+     * Where the ladle and system partitions keep their data.
+     */
+    public enum Storage {
+        /** File-backed JDBM partitions (the ApacheDS default). */
+        JDBM,
+        /** In-memory AVL partitions; nothing but the schema is written to disk. */
+        MEMORY
+    }
+
+    /**
+     * Told as each step of {@link #start} finishes.
+     */
+    public interface PhaseListener {
+        /**
+         * @param phase the step's name, e.g. <code>schema</code>
+         * @param millis how long the step took.  This is wall-clock time, so work done in the
+         *   background during the step (like parsing the LDIF) is not included.
+         */
+        void phaseCompleted(String phase, long millis);
+    }
+
+    /**
+     * Partition ids which tenants may not use, as the server (or ApacheDS) already has them.
+     */
+    private static final Set<String> RESERVED_PARTITION_IDS = new HashSet<String>(
+        Arrays.asList("ladle", "system", "schema"));
+
     private final Logger log = Logger.getLogger(getClass());
 
     private final int port;
@@ -64,10 +109,40 @@ public class Server {
     private final File tempDir;
     private final String ldifFileName;
     private boolean running = false;
+    private boolean bulkLoad = false;
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
     private Collection<String> customSchemaFilenames;
+    private List<String> indexedAttributes = Arrays.asList("objectClass", "ou", "dc", "uid");
+    private Integer indexCacheSize;
+    private IndexAdvisor indexAdvisor;
+    private OperationStats operationStats;
+    private SnapshotCache snapshotCache;
+    private File sharedSchemaDir;
+    private boolean customSchemasCompiled = false;
+    private Storage storage = Storage.JDBM;
+    private boolean resettable = false;
+    private DirectorySnapshot snapshot;
+    private ChangeTracker changeTracker;
+    private Map<String, Partition> tenants = new LinkedHashMap<String, Partition>();
+    private AnonymousAccessInterceptor anonymousAccess;
+    private PhaseListener phaseListener;
+    private Integer transportProcessors;
+    private Integer transportWorkers;
+    private Integer backlog;
+    private boolean tcpNoDelay = true;
+    private Long maxSizeLimit;
+    private Integer maxTimeLimit;
+    private Integer entryCacheSize;
+    private Integer dnCacheSize;
+    private Integer aliasCacheSize;
+    private Integer partitionCacheSize;
+    private boolean warm = false;
+    private boolean ephemeral = false;
+    private Map<String, Cache> caches = new LinkedHashMap<String, Cache>();
 
     private DirectoryService service;
     private LdapServer ldapServer;
+    private Partition ladlePartition;
 
     public Server(
         int port, String domainComponent, File ldifFile, File tempDirBase, boolean allowAnonymous,
@@ -81,10 +156,189 @@ public class Server {
         this.customSchemaFilenames = customSchemaFilenames;
     }
 
+    /**
+     * If set, the data LDIF is written directly into the ladle partition instead of being added
+     * entry-by-entry through the admin session.  See {@link #bulkLoadLDIF}.
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    /**
+     * Sets the number of threads which parse LDIF entries while loading.  Defaults to the number
+     * of available processors.  See {@link LdifPipeline}.
+     */
+    public void setLoadThreads(int loadThreads) {
+        this.loadThreads = loadThreads;
+    }
+
+    /**
+     * If set, fully-loaded partitions are cached under the given directory and reused by later
+     * servers started from the same domain, LDIF, custom schemas and indexes.
+     */
+    public void setSnapshotCacheDir(File snapshotCacheDir) {
+        this.snapshotCache = snapshotCacheDir == null ? null : new SnapshotCache(snapshotCacheDir);
+    }
+
+    /**
+     * If set, the schema is extracted once under the given directory and shared, read-only, with
+     * every other server using the same directory.  The custom schemas are compiled into a copy
+     * of it, so that they are loaded with the rest of the schema instead of being added after
+     * every start.  See {@link SharedSchemaPartition}.
+     */
+    public void setSharedSchemaDir(File sharedSchemaDir) {
+        this.sharedSchemaDir = sharedSchemaDir;
+    }
+
+    /**
+     * Selects the kind of partition used for the ladle and system partitions.  Defaults to
+     * {@link Storage#JDBM}.
+     */
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * If set, the contents of the ladle partition are snapshotted once the server has loaded
+     * its data, so that {@link #reset} can put them back later.
+     */
+    public void setResettable(boolean resettable) {
+        this.resettable = resettable;
+    }
+
+    /**
+     * Replaces the attributes indexed in the ladle partition (and any tenant partitions).
+     * Defaults to objectClass, ou, dc and uid.
+     */
+    public void setIndexedAttributes(Collection<String> indexedAttributes) {
+        this.indexedAttributes = new ArrayList<String>(indexedAttributes);
+    }
+
+    /**
+     * Sets the number of entries cached by each JDBM index.  If not set, the ApacheDS default
+     * is used.  Has no effect with {@link Storage#MEMORY}.
+     */
+    public void setIndexCacheSize(Integer indexCacheSize) {
+        this.indexCacheSize = indexCacheSize;
+    }
+
+    /**
+     * If set, the attributes used in search filters are recorded while the server runs and a
+     * report of the unindexed ones is logged when it stops.  See {@link IndexAdvisor}.
+     */
+    public void setIndexAdvisor(boolean indexAdvisor) {
+        this.indexAdvisor = indexAdvisor ? new IndexAdvisor() : null;
+    }
+
+    /**
+     * Sets the number of NIO processors (selector threads) serving the LDAP connections.  If
+     * not set, the ApacheDS default (3) is used.  See {@link TunableTcpTransport}.
+     */
+    public void setTransportProcessors(Integer transportProcessors) {
+        this.transportProcessors = transportProcessors;
+    }
+
+    /**
+     * Sets the number of threads executing LDAP requests.  If not set, the ApacheDS default
+     * (3) is used.
+     */
+    public void setTransportWorkers(Integer transportWorkers) {
+        this.transportWorkers = transportWorkers;
+    }
+
+    /**
+     * Sets the number of pending connections the listening socket queues before refusing new
+     * ones.  If not set, the ApacheDS default (50) is used.
+     */
+    public void setBacklog(Integer backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Whether to disable Nagle's algorithm on LDAP connections.  Defaults to true, as in
+     * ApacheDS.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Sets the most entries a search by anyone but the admin may return.  0 means no limit.
+     * If not set, the ApacheDS default (100) is used.
+     */
+    public void setMaxSizeLimit(Long maxSizeLimit) {
+        this.maxSizeLimit = maxSizeLimit;
+    }
+
+    /**
+     * Sets the most time, in seconds, a search by anyone but the admin may take.  0 means no
+     * limit.  If not set, the ApacheDS default (10000) is used.
+     */
+    public void setMaxTimeLimit(Integer maxTimeLimit) {
+        this.maxTimeLimit = maxTimeLimit;
+    }
+
+    /**
+     * Sets the number of entries each JDBM partition keeps in its entry cache.  ApacheDS never
+     * lets this be smaller than the {@link #setPartitionCacheSize partition cache size}, which
+     * is 10000 by default.  Has no effect with {@link Storage#MEMORY}.
+     */
+    public void setEntryCacheSize(Integer entryCacheSize) {
+        this.entryCacheSize = entryCacheSize;
+    }
+
+    /**
+     * Sets the number of parsed DNs the server caches.  If not set, the ApacheDS default
+     * (10000) is used.
+     */
+    public void setDnCacheSize(Integer dnCacheSize) {
+        this.dnCacheSize = dnCacheSize;
+    }
+
+    /**
+     * Sets the number of alias lookups the partitions cache.  As with the entry cache, ApacheDS
+     * never lets this be smaller than the partition cache size.
+     */
+    public void setAliasCacheSize(Integer aliasCacheSize) {
+        this.aliasCacheSize = aliasCacheSize;
+    }
+
+    /**
+     * Sets the number of records each JDBM partition's record manager caches.  If not set, the
+     * ApacheDS default (10000) is used.  Has no effect with {@link Storage#MEMORY}.
+     */
+    public void setPartitionCacheSize(Integer partitionCacheSize) {
+        this.partitionCacheSize = partitionCacheSize;
+    }
+
+    /**
+     * If set, every entry in the ladle partition is read once before {@link #start} returns,
+     * so that the first searches find them in the caches.
+     */
+    public void setWarm(boolean warm) {
+        this.warm = warm;
+    }
+
+    /**
+     * If set, the partitions don't sync after each write, and {@link #stop} only closes the
+     * LDAP listener, leaving the directory service's shutdown and the temporary directory's
+     * deletion to a background {@link TempDirReaper}.  Data written since the last periodic
+     * sync is lost if the server dies, which doesn't matter for data that is discarded anyway.
+     */
+    public void setEphemeral(boolean ephemeral) {
+        this.ephemeral = ephemeral;
+    }
+
+    public void setPhaseListener(PhaseListener phaseListener) {
+        this.phaseListener = phaseListener;
+    }
+
     ////// SETUP
 
     private File createTempDir(File tempDirBase) {
-        File temp = new File(tempDirBase, "ladle-server-" + UUID.randomUUID());
+        // the process id tells the ruby controller whether a discarded directory is still in use
+        String processId = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        File temp = new File(tempDirBase, "ladle-server-" + processId + '-' + UUID.randomUUID());
 
         if (temp.mkdir()) {
             return temp;
@@ -113,92 +367,742 @@ public class Server {
     public void start() throws Exception {
         if (running) return;
 
-        try {
-            // Initialize the LDAP service
-            service = new DefaultDirectoryService();
-            service.setInstanceLayout( new InstanceLayout( tempDir ) );
+        if (snapshotCache != null && storage == Storage.MEMORY) {
+            throw new LadleFatalException("The snapshot cache cannot be used with in-memory storage");
+        }
 
-            CacheService cacheService = new CacheService();
-            cacheService.initialize( service.getInstanceLayout() );
+        LdifPipeline data = null;
+        try {
+            // Reuse previously built partitions, if available
+            File partitionsDirectory = new InstanceLayout( tempDir ).getPartitionsDirectory();
+            String snapshotKey = null;
+            boolean restored = false;
+            long phaseStartedAt = System.currentTimeMillis();
+            if (snapshotCache != null) {
+                snapshotKey = SnapshotCache.key(
+                    domainComponent, ldifFileName, customSchemaFilenames, indexedAttributes,
+                    sharedSchemaDir != null);
+                restored = snapshotCache.restore(snapshotKey, partitionsDirectory);
+                phaseStartedAt = phaseCompleted("snapshot-restore", phaseStartedAt);
+            }
 
-            service.setCacheService( cacheService );
+            if (!restored) {
+                // Read and parse the data while the directory service starts up
+                data = newPipeline(new File(ldifFileName), customSchemaFilenames).start();
+            }
 
-            // first load the schema
-            initSchemaPartition();
+            initDirectoryService();
+            phaseStartedAt = phaseCompleted("schema", phaseStartedAt);
+            service.startup();
+            phaseStartedAt = phaseCompleted("directory-service", phaseStartedAt);
 
-            // then the system partition
-            initSystemPartition();
+            if (restored) {
+                restoreCustomSchemas();
+                phaseStartedAt = phaseCompleted("custom-schemas", phaseStartedAt);
+            }
 
-            // Disable the ChangeLog system
-            service.getChangeLog().setEnabled( false );
-            service.setDenormalizeOpAttrsEnabled( true );
+            if (!restored) {
+                injectContextEntry( ladlePartition );
 
-            // Now we can create as many partitions as we need
-            Partition ladlePartition = addPartition( "ladle", domainComponent, service.getDnFactory() );
+                // Load up any extra data
+                loadCustomSchemas();
+                phaseStartedAt = phaseCompleted("custom-schemas", phaseStartedAt);
+                if (bulkLoad) {
+                    bulkLoadLDIF(data, (AbstractBTreePartition) ladlePartition);
+                } else {
+                    loadLDIF(data, false);
+                }
+                phaseStartedAt = phaseCompleted("ldif", phaseStartedAt);
 
-            // Setup indexes, access rules, and start it up
-            addIndex( ladlePartition, "objectClass", "ou", "dc", "uid" );
-            service.setAllowAnonymousAccess( allowAnonymous );
-            service.startup();
+                if (snapshotCache != null) {
+                    // JDBM only leaves a complete set of files behind after a clean shutdown,
+                    // so cache that and then start again from the same directory.
+                    service.shutdown();
+                    snapshotCache.store(snapshotKey, partitionsDirectory);
+                    startDirectoryService();
+                    restoreCustomSchemas();
+                    phaseStartedAt = phaseCompleted("snapshot-store", phaseStartedAt);
+                }
+            }
 
-             // Inject the context entry for the partition if it does not already exist
-            try
-            {
-                service.getAdminSession().lookup( ladlePartition.getSuffixDn() );
+            if (warm) {
+                warmCaches();
+                phaseStartedAt = phaseCompleted("warm", phaseStartedAt);
             }
-            catch ( LdapException lnnfe )
-            {
-                Dn userDN = new Dn( domainComponent );
-                Entry userEntry = service.newEntry( userDN );
-                userEntry.add( "objectClass", "top", "domain", "extensibleObject" );
-                userEntry.add( "dc", domainComponent.split(",")[0].substring(3) );
-                service.getAdminSession().add( userEntry );
+
+            if (resettable) {
+                takeSnapshot();
+                phaseStartedAt = phaseCompleted("reset-snapshot", phaseStartedAt);
             }
 
-            // Load up any extra data
-            for (String schemaFileName : customSchemaFilenames) {
-                loadLDIF(schemaFileName);
+            if (indexAdvisor != null) {
+                service.addLast(indexAdvisor);
             }
-            loadLDIF(ldifFileName);
+            operationStats = new OperationStats();
+            service.addFirst(operationStats);
 
             // Now create the LDAP server and transport for the Directory Service.
             ldapServer = new LdapServer();
             ldapServer.setDirectoryService( service );
-            TcpTransport ldapTransport = new TcpTransport( port );
+            if ( maxSizeLimit != null )
+            {
+                ldapServer.setMaxSizeLimit( maxSizeLimit );
+            }
+            if ( maxTimeLimit != null )
+            {
+                ldapServer.setMaxTimeLimit( maxTimeLimit );
+            }
+            TcpTransport ldapTransport = createTransport();
             ldapServer.setTransports( ldapTransport );
             ldapServer.start();
+            // LdapServer turns TCP_NODELAY on as it binds; the setting applies to each
+            // connection as it is accepted, so it can still be changed here.
+            ldapTransport.getAcceptor().getSessionConfig().setTcpNoDelay( tcpNoDelay );
+            phaseCompleted("transport", phaseStartedAt);
+
+            // so that the hit ratios logged at stop reflect the clients, not the loading
+            clearCacheStatistics();
         } catch (NamingException e) {
             throw new LadleFatalException("Startup failed", e);
         } catch (InstantiationException e) {
             throw new LadleFatalException("Custom schema not initializable", e);
         } catch (IllegalAccessException e) {
             throw new LadleFatalException("Custom schema not initializable", e);
+        } finally {
+            if (data != null) {
+                data.cancel();
+            }
         }
 
         running = true;
     }
 
+    /**
+     * Parses and normalizes the server's LDIF, against the schema plus its custom schemas, and
+     * writes it out as a {@link CompiledLdif} which later servers can load instead.  The server
+     * is not started; only its directory service runs, to provide the schema.
+     *
+     * @param output where to write the compiled entries
+     * @return the number of entries written
+     * @throws LadleFatalException if some entries' parents never appear
+     */
+    public int compileLDIF(File output) throws Exception {
+        if (running) {
+            throw new LadleFatalException("The LDIF can't be compiled while the server is running");
+        }
+
+        LdifPipeline data = newPipeline(new File(ldifFileName), customSchemaFilenames).start();
+        try {
+            startDirectoryService();
+            loadCustomSchemas();
+
+            long startedAt = System.currentTimeMillis();
+            final Dn suffixDn = ladlePartition.getSuffixDn();
+            final CompiledLdif.Writer writer = new CompiledLdif.Writer(output, customSchemaFilenames);
+            int count;
+            try {
+                data.load(service.getSchemaManager(), new LdifPipeline.Sink() {
+                    public boolean add(Entry entry) throws Exception {
+                        writer.write(entry);
+                        return true;
+                    }
+
+                    // Nothing is added to the directory, so only the context entry (which
+                    // is injected when the LDIF doesn't have it) and what's above it exist.
+                    public boolean exists(Dn dn) {
+                        return dn.equals(suffixDn) || !dn.isDescendantOf(suffixDn);
+                    }
+                });
+                count = writer.commit();
+            } catch (Exception e) {
+                writer.abort();
+                throw e;
+            }
+            log.info(String.format("Compiled %d entries from %s into %s in %dms",
+                count, ldifFileName, output, System.currentTimeMillis() - startedAt));
+            return count;
+        } finally {
+            data.cancel();
+            if (service != null && service.isStarted()) {
+                service.shutdown();
+            }
+            if (tempDir.exists()) {
+                FileUtils.deleteDirectory(tempDir);
+            }
+        }
+    }
+
+    /**
+     * Checks every entry in the server's LDIF against the schema plus its custom schemas and
+     * reports all the problems found, without starting the server.  Only the schema is loaded:
+     * the custom schemas are {@link SharedSchemaPartition#extract(File, Collection) compiled}
+     * into a copy of it (under the shared schema directory if there is one, otherwise in the
+     * temporary directory).  Custom schemas which can't be compiled that way are loaded through
+     * a directory service instead, as they would be at startup.
+     *
+     * @return the problems found, with the lines they're on
+     * @see LdifValidator
+     */
+    public LdifValidator.Report validateLDIF() throws Exception {
+        if (running) {
+            throw new LadleFatalException("The LDIF can't be validated while the server is running");
+        }
+
+        try {
+            long phaseStartedAt = System.currentTimeMillis();
+            SchemaManager schemaManager;
+            File schemaDirectory = SharedSchemaPartition.extract(
+                sharedSchemaDir == null ? tempDir : sharedSchemaDir, customSchemaFilenames);
+            if (schemaDirectory != null) {
+                schemaManager = loadSchemaManager(schemaDirectory);
+            } else {
+                log.warn("Starting the directory service to load the custom schemas");
+                startDirectoryService();
+                loadCustomSchemas();
+                schemaManager = service.getSchemaManager();
+            }
+            phaseStartedAt = phaseCompleted("schema", phaseStartedAt);
+
+            LdifValidator.Report report = new LdifValidator(new File(ldifFileName), loadThreads)
+                .validate(schemaManager, new Dn(schemaManager, domainComponent));
+            phaseCompleted("validate", phaseStartedAt);
+            log.info(String.format("Validated %d entries from %s in %dms: %d problems",
+                report.getEntries(), ldifFileName, report.getMillis(), report.getProblems().size()));
+            return report;
+        } finally {
+            if (service != null && service.isStarted()) {
+                service.shutdown();
+            }
+            if (tempDir.exists()) {
+                FileUtils.deleteDirectory(tempDir);
+            }
+        }
+    }
+
+    private TcpTransport createTransport()
+    {
+        TcpTransport transport = transportProcessors == null
+            ? new TcpTransport( port )
+            : new TunableTcpTransport( port, transportProcessors );
+        if ( transportWorkers != null )
+        {
+            // LdapServer sizes its request executor from this when it starts
+            transport.setNbThreads( transportWorkers );
+        }
+        if ( backlog != null )
+        {
+            // the acceptor has already been created with the default
+            transport.setBackLog( backlog );
+            transport.getAcceptor().setBacklog( backlog );
+        }
+        return transport;
+    }
+
+    /**
+     * Notifies the {@link PhaseListener}, if any.
+     *
+     * @return the time now, i.e., when the next phase starts
+     */
+    private long phaseCompleted(String phase, long startedAt) {
+        long now = System.currentTimeMillis();
+        if (phaseListener != null) {
+            phaseListener.phaseCompleted(phase, now - startedAt);
+        }
+        return now;
+    }
+
+    /**
+     * Creates the directory service over the temporary directory and starts it up.  Any
+     * partitions already present in the directory are opened as-is.
+     */
+    private void startDirectoryService() throws Exception {
+        initDirectoryService();
+        service.startup();
+    }
+
+    /**
+     * Creates the directory service, loads the schema and configures the partitions, without
+     * starting anything.
+     */
+    private void initDirectoryService() throws Exception {
+        // Initialize the LDAP service
+        service = new DefaultDirectoryService();
+        service.setInstanceLayout( new InstanceLayout( tempDir ) );
+        // stop() shuts it down; a second hook of its own would race that and close the caches
+        // under reportCacheStatistics
+        service.setShutdownHookEnabled( false );
+
+        CacheService cacheService = new CacheService();
+        cacheService.initialize( service.getInstanceLayout() );
+        configureCache( cacheService, "dnCache", dnCacheSize );
+        configureCache( cacheService, "alias", aliasCacheSize );
+
+        service.setCacheService( cacheService );
+
+        // first load the schema
+        initSchemaPartition();
+
+        // then the system partition
+        initSystemPartition();
+
+        // Disable the ChangeLog system
+        service.getChangeLog().setEnabled( false );
+        service.setDenormalizeOpAttrsEnabled( true );
+
+        // Now we can create as many partitions as we need
+        ladlePartition = addPartition( "ladle", domainComponent, service.getDnFactory() );
+
+        // Setup access rules
+        service.setAllowAnonymousAccess( allowAnonymous );
+    }
+
+    /**
+     * Creates the named cache if necessary, resizes it if a size is given and starts recording
+     * its hit ratio for {@link #reportCacheStatistics}.
+     */
+    private void configureCache( CacheService cacheService, String name, Integer size )
+    {
+        Cache cache = cacheService.getCache( name );
+        if ( size != null )
+        {
+            cache.getCacheConfiguration().setMaxElementsInMemory( size );
+        }
+        cache.setStatisticsEnabled( true );
+        caches.put( name, cache );
+    }
+
+    private void clearCacheStatistics() {
+        for (Cache cache : caches.values()) {
+            cache.clearStatistics();
+        }
+    }
+
+    private void reportCacheStatistics() {
+        for (Cache cache : caches.values()) {
+            Statistics statistics = cache.getStatistics();
+            long hits = statistics.getCacheHits();
+            long lookups = hits + statistics.getCacheMisses();
+            log.info("Cache " + cache.getName() + ": " + hits + " hits in " + lookups + " lookups" +
+                (lookups == 0 ? "" : " (" + (hits * 100 / lookups) + "%)") + ", " +
+                statistics.getObjectCount() + " of " +
+                cache.getCacheConfiguration().getMaxElementsInMemory() + " entries in use");
+        }
+    }
+
+    /**
+     * Reads every entry in the ladle partition, which brings them and their DNs into the
+     * caches.
+     */
+    private void warmCaches() throws Exception {
+        long startedAt = System.currentTimeMillis();
+        int count = 0;
+        Cursor<Entry> cursor = service.getAdminSession().search(ladlePartition.getSuffixDn(),
+            SearchScope.SUBTREE, new PresenceNode(SchemaConstants.OBJECT_CLASS_AT),
+            AliasDerefMode.NEVER_DEREF_ALIASES);
+        try {
+            while (cursor.next()) {
+                cursor.get();
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        log.info("Warmed the caches with " + count + " entries in " +
+            (System.currentTimeMillis() - startedAt) + "ms");
+    }
+
+    private void takeSnapshot() throws Exception {
+        long startedAt = System.currentTimeMillis();
+        snapshot = DirectorySnapshot.take(service.getAdminSession(), ladlePartition.getSuffixDn());
+        changeTracker = new ChangeTracker(ladlePartition.getSuffixDn());
+        service.addLast(changeTracker);
+        log.info("Took a snapshot of " + snapshot.size() + " entries in " +
+            (System.currentTimeMillis() - startedAt) + "ms");
+    }
+
+    /**
+     * Reverts every change made to the ladle partition since the server started, using the
+     * snapshot taken after the data was loaded.  Only entries which were changed are touched.
+     * Other writes wait until the reset is done, so that none of them lands, unrecorded, while
+     * the change tracker is paused.
+     *
+     * @return the number of entries which were reverted
+     */
+    public synchronized int reset() throws Exception {
+        if (snapshot == null) {
+            throw new LadleFatalException("The server was not started as resettable");
+        }
+
+        long startedAt = System.currentTimeMillis();
+        int reverted;
+        // every write takes this lock around the interceptor chain; the restore's own writes
+        // and lookups take it again, which it allows
+        OperationManager operations = service.getOperationManager();
+        operations.lockWrite();
+        try {
+            changeTracker.pause();
+            try {
+                reverted = snapshot.restore(service.getAdminSession(),
+                    changeTracker.getChangedEntries(), changeTracker.getChangedSubtrees());
+                changeTracker.clear();
+            } finally {
+                changeTracker.resume();
+            }
+        } finally {
+            operations.unlockWrite();
+        }
+        log.info("Reset " + reverted + " entries in " + (System.currentTimeMillis() - startedAt) + "ms");
+        return reverted;
+    }
+
+    /**
+     * Returns the operation counts, latencies and search statistics recorded since the server
+     * started, as a single line of JSON.  See {@link OperationStats}.
+     */
+    public String stats() {
+        if (operationStats == null) {
+            throw new LadleFatalException("The server is not running");
+        }
+        return operationStats.toJson();
+    }
+
+    ////// TENANTS
+
+    /**
+     * Adds another partition to the running server, e.g., to give a parallel test worker a
+     * directory of its own.  The partition uses the server's storage type and indexes, and
+     * shares its schema, system partition and port with every other partition.
+     *
+     * @param id a name for the partition, unique within the server
+     * @param suffix the DN of the partition's top-level entry (e.g., dc=worker1,dc=org)
+     * @param ldifFile the data to load into the new partition
+     * @param schemaFileNames custom schemas which the data needs.  Schemas are server-wide, so
+     *   ones which another partition has already loaded are skipped.
+     * @param allowAnonymous whether anonymous users may read the partition.  This can only
+     *   further restrict the server-wide setting.
+     * @return the number of entries loaded from the LDIF
+     */
+    public synchronized int addTenant(
+        String id, String suffix, File ldifFile, Collection<String> schemaFileNames,
+        boolean allowAnonymous
+    ) throws Exception {
+        if (!running) {
+            throw new LadleFatalException("The server is not running");
+        }
+        if (RESERVED_PARTITION_IDS.contains(id) || tenants.containsKey(id)) {
+            throw new LadleFatalException("There is already a partition named \"" + id + '"');
+        }
+
+        Partition partition = addPartition(id, suffix, service.getDnFactory());
+        tenants.put(id, partition);
+        try {
+            injectContextEntry(partition);
+            for (String schemaFileName : schemaFileNames) {
+                loadLDIF(schemaFileName, true);
+            }
+            int count;
+            if (bulkLoad) {
+                count = bulkLoadLDIF(
+                    newPipeline(ldifFile, schemaFileNames), (AbstractBTreePartition) partition);
+            } else {
+                count = loadLDIF(newPipeline(ldifFile, schemaFileNames), false);
+            }
+
+            if (!allowAnonymous) {
+                if (anonymousAccess == null) {
+                    anonymousAccess = new AnonymousAccessInterceptor();
+                    service.addLast(anonymousAccess);
+                }
+                anonymousAccess.protect(partition.getSuffixDn());
+            }
+            return count;
+        } catch (Exception e) {
+            try {
+                removeTenant(id);
+            } catch (Exception cleanupFailure) {
+                // the caller needs to see why the partition couldn't be added, not this
+                log.warn("Removing the partially added partition " + id + " failed", cleanupFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a partition added with {@link #addTenant}, discarding all of its data.  Custom
+     * schemas it loaded stay in place, since other partitions may be using them.
+     */
+    public synchronized void removeTenant(String id) throws Exception {
+        Partition partition = tenants.remove(id);
+        if (partition == null) {
+            throw new LadleFatalException("There is no partition named \"" + id + '"');
+        }
+
+        if (anonymousAccess != null) {
+            anonymousAccess.unprotect(partition.getSuffixDn());
+        }
+        service.removePartition(partition);
+
+        File partitionDirectory = new File(service.getInstanceLayout().getPartitionsDirectory(), id);
+        if (partitionDirectory.exists()) {
+            FileUtils.deleteDirectory(partitionDirectory);
+        }
+    }
+
+    /**
+     * Adds the entries in the given LDIF to the running server, e.g., to move it to another
+     * fixture state without restarting.  The entries go through the admin session, so
+     * {@link #reset} reverts them like any other change.
+     *
+     * @return the number of entries added
+     */
+    public synchronized int load(String filepath) throws Exception {
+        if (!running) {
+            throw new LadleFatalException("The server is not running");
+        }
+        return loadLDIF(filepath, false);
+    }
+
+    /**
+     * Applies the change records (add, delete, modify, modrdn and moddn) in the given LDIF to
+     * the running server, in order.  Records without a changetype are added.  The first change
+     * which fails stops the run; the ones before it stay applied.
+     *
+     * @return the number of changes applied
+     */
+    public synchronized int apply(String filepath) throws Exception {
+        if (!running) {
+            throw new LadleFatalException("The server is not running");
+        }
+
+        log.info("Applying : " + filepath);
+
+        CoreSession session = service.getAdminSession();
+        long startedAt = System.currentTimeMillis();
+        int count = 0;
+        LdifReader reader = new LdifReader(new File(filepath));
+        try {
+            for (LdifEntry change : reader) {
+                try {
+                    applyChange(session, change);
+                } catch (LdapException e) {
+                    throw new LadleFatalException("Change " + (count + 1) + " (" +
+                        change.getChangeType() + " " + change.getDn() + ") failed: " + e.getMessage(), e);
+                }
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - startedAt, 1);
+        log.info(String.format("Applied %d changes from %s in %dms (%.1f changes/sec)",
+            count, filepath, elapsed, count * 1000.0 / elapsed));
+        return count;
+    }
+
+    private void applyChange(CoreSession session, LdifEntry change) throws LdapException {
+        SchemaManager schemaManager = service.getSchemaManager();
+        Dn dn = change.getDn();
+        if (!dn.isSchemaAware()) {
+            dn.apply(schemaManager);
+        }
+
+        if (change.isLdifContent() || change.isChangeAdd()) {
+            session.add(new DefaultEntry(schemaManager, change.getEntry()));
+        } else if (change.isChangeDelete()) {
+            session.delete(dn);
+        } else if (change.isChangeModify()) {
+            session.modify(dn, change.getModifications());
+        } else if (change.isChangeModRdn() || change.isChangeModDn()) {
+            Rdn newRdn = new Rdn(schemaManager, change.getNewRdn());
+            if (change.getNewSuperior() == null) {
+                session.rename(dn, newRdn, change.isDeleteOldRdn());
+            } else {
+                Dn newSuperior = new Dn(schemaManager, change.getNewSuperior());
+                if (newRdn.equals(dn.getRdn())) {
+                    session.move(dn, newSuperior);
+                } else {
+                    session.moveAndRename(dn, newSuperior, newRdn, change.isDeleteOldRdn());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the custom schemas through the admin session, unless they were compiled into the
+     * shared schema.
+     */
+    private void loadCustomSchemas() throws Exception {
+        if (customSchemasCompiled) return;
+        for (String schemaFileName : customSchemaFilenames) {
+            loadLDIF(schemaFileName);
+        }
+    }
+
+    /**
+     * Reloads the custom schemas after starting from existing partitions.  This is only
+     * necessary with a shared schema, since that schema partition is memory-only.
+     */
+    private void restoreCustomSchemas() throws Exception {
+        if (sharedSchemaDir != null) {
+            loadCustomSchemas();
+        }
+    }
+
+    /**
+     * @param customSchemaFilenames the custom schemas which the LDIF, if it is a
+     *   {@link CompiledLdif}, must have been compiled with
+     */
+    private LdifPipeline newPipeline(File ldif, Collection<String> customSchemaFilenames) {
+        return new LdifPipeline(ldif, loadThreads, customSchemaFilenames);
+    }
+
     public void loadLDIF(String filepath) throws Exception {
+        loadLDIF(filepath, false);
+    }
+
+    private int loadLDIF(String filepath, boolean skipExisting) throws Exception {
+        return loadLDIF(newPipeline(new File(filepath), customSchemaFilenames), skipExisting);
+    }
+
+    /**
+     * @param skipExisting if set, entries which are already in the directory are left alone
+     *   instead of failing the load.  Used for custom schemas, which are shared by every tenant.
+     * @return the number of entries added
+     */
+    private int loadLDIF(LdifPipeline pipeline, boolean skipExisting) throws Exception {
+        String filepath = pipeline.getFile().getPath();
 
         log.info("Loading : " + filepath);
 
         if (!service.isStarted()) {
             throw new Exception("Directory service not started");
         } else {
-            InputStream inputStream = null;
-            SchemaManager schemaManager = service.getSchemaManager();
-            try {
-                inputStream = new FileInputStream(filepath);
-                if (inputStream != null) {
-                    LdifReader entries = new LdifReader(inputStream);
-                    for (LdifEntry ldifEntry : entries) {
-                        DefaultEntry newEntry = new DefaultEntry(schemaManager, ldifEntry.getEntry());
-                        service.getAdminSession().add( newEntry );
+            final boolean skip = skipExisting;
+            final CoreSession session = service.getAdminSession();
+            long startedAt = System.currentTimeMillis();
+            int count = pipeline.load(service.getSchemaManager(), new LdifPipeline.Sink() {
+                public boolean add(Entry entry) throws Exception {
+                    if (skip && session.exists(entry.getDn())) {
+                        return false;
                     }
+                    session.add( entry );
+                    return true;
                 }
-            } finally {
-                if (inputStream != null) inputStream.close();
-            }
+
+                public boolean exists(Dn dn) throws Exception {
+                    return session.exists(dn);
+                }
+            });
+            logLoadRate(filepath, count, startedAt);
+            return count;
+        }
+    }
+
+    /**
+     * Passes each entry in the given LDIF, plain or {@link CompiledLdif compiled}, to the sink
+     * without adding it to the directory.  The entries are schema-aware, against the running
+     * server's schema.
+     */
+    public void readLDIF(String filepath, LdifPipeline.Sink sink) throws Exception {
+        newPipeline(new File(filepath), customSchemaFilenames).load(service.getSchemaManager(), sink);
+    }
+
+    /**
+     * Loads the given LDIF straight into the ladle partition, skipping the interceptor chain.
+     * The operational attributes the chain would normally add are filled in here, and the
+     * partition's sync-on-write is turned off while loading, so that it is only synced to disk
+     * once, after the last entry; afterwards it is turned back on unless the server is
+     * ephemeral.  Since the schema and access-control interceptors are skipped, the LDIF is
+     * trusted as-is; entries which fall outside the ladle partition are still added through the
+     * admin session.
+     *
+     * @param filepath the LDIF to load
+     * @throws Exception if the LDIF can't be read or an entry can't be stored
+     */
+    public void bulkLoadLDIF(String filepath) throws Exception {
+        bulkLoadLDIF(filepath, (AbstractBTreePartition) ladlePartition);
+    }
+
+    private int bulkLoadLDIF(String filepath, AbstractBTreePartition partition) throws Exception {
+        return bulkLoadLDIF(newPipeline(new File(filepath), customSchemaFilenames), partition);
+    }
+
+    private int bulkLoadLDIF(LdifPipeline pipeline, AbstractBTreePartition partition) throws Exception {
+        String filepath = pipeline.getFile().getPath();
+
+        log.info("Bulk loading : " + filepath);
+
+        if (!service.isStarted()) {
+            throw new Exception("Directory service not started");
+        }
+
+        final AbstractBTreePartition target = partition;
+        final Dn suffixDn = partition.getSuffixDn();
+        final CoreSession session = service.getAdminSession();
+        final String creatorsName = session.getEffectivePrincipal().getName();
+
+        long startedAt = System.currentTimeMillis();
+        switchSyncOnWrite(partition, false);
+        int count;
+        try {
+            count = pipeline.load(service.getSchemaManager(), new LdifPipeline.Sink() {
+                public boolean add(Entry entry) throws Exception {
+                    Dn dn = entry.getDn();
+                    if (dn.isDescendantOf(suffixDn) || dn.equals(suffixDn)) {
+                        entry.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+                        entry.put(SchemaConstants.ENTRY_CSN_AT, service.getCSN().toString());
+                        entry.put(SchemaConstants.CREATORS_NAME_AT, creatorsName);
+                        entry.put(SchemaConstants.CREATE_TIMESTAMP_AT, DateUtils.getGeneralizedTime());
+                        target.add(new AddOperationContext(session, entry));
+                    } else {
+                        session.add( entry );
+                    }
+                    return true;
+                }
+
+                public boolean exists(Dn dn) throws Exception {
+                    return session.exists(dn);
+                }
+            });
+            partition.sync();
+        } finally {
+            // later writes (from clients, LOAD, APPLY) are synced as usual
+            switchSyncOnWrite(partition, !ephemeral);
+        }
+        logLoadRate(filepath, count, startedAt);
+        return count;
+    }
+
+    private static void switchSyncOnWrite(AbstractBTreePartition partition, boolean syncOnWrite) {
+        // in-memory partitions have nothing to sync
+        if (partition instanceof LadleJdbmPartition) {
+            ((LadleJdbmPartition) partition).switchSyncOnWrite(syncOnWrite);
+        }
+    }
+
+    private void logLoadRate(String filepath, int count, long startedAt) {
+        long elapsed = Math.max(System.currentTimeMillis() - startedAt, 1);
+        log.info(String.format("Loaded %d entries from %s in %dms (%.1f entries/sec)",
+            count, filepath, elapsed, count * 1000.0 / elapsed));
+    }
+
+    /**
+     * Adds the top-level entry for the given partition if it does not already exist.
+     */
+    private void injectContextEntry( Partition partition ) throws Exception
+    {
+        Dn suffixDn = partition.getSuffixDn();
+        try
+        {
+            service.getAdminSession().lookup( suffixDn );
+        }
+        catch ( LdapException lnnfe )
+        {
+            Entry contextEntry = service.newEntry( suffixDn );
+            contextEntry.add( "objectClass", "top", "domain", "extensibleObject" );
+            contextEntry.add( "dc", suffixDn.getRdn().getValue().getString() );
+            service.getAdminSession().add( contextEntry );
         }
     }
 
@@ -214,10 +1118,9 @@ public class Server {
     private Partition addPartition( String partitionId, String partitionDn, DnFactory dnFactory ) throws Exception
     {
         // Create a new partition with the given partition id
-        JdbmPartition partition = new JdbmPartition(service.getSchemaManager(), dnFactory);
-        partition.setId( partitionId );
-        partition.setPartitionPath( new File( service.getInstanceLayout().getPartitionsDirectory(), partitionId ).toURI() );
+        AbstractBTreePartition partition = createPartition( partitionId, dnFactory );
         partition.setSuffixDn( new Dn( partitionDn ) );
+        addIndex( partition, indexedAttributes.toArray(new String[indexedAttributes.size()]) );
         service.addPartition( partition );
 
         return partition;
@@ -232,25 +1135,67 @@ public class Server {
     {
         InstanceLayout instanceLayout = service.getInstanceLayout();
 
-        File schemaPartitionDirectory = new File( instanceLayout.getPartitionsDirectory(), "schema" );
-
-        // Extract the schema on disk (a brand new one) and load the registries
-        if ( schemaPartitionDirectory.exists() )
+        File schemaPartitionDirectory;
+        if ( sharedSchemaDir != null )
         {
-            log.warn( "schema partition already exists, skipping schema extraction" );
+            schemaPartitionDirectory = SharedSchemaPartition.extract( sharedSchemaDir, customSchemaFilenames );
+            customSchemasCompiled = schemaPartitionDirectory != null && !customSchemaFilenames.isEmpty();
+            if ( schemaPartitionDirectory == null )
+            {
+                schemaPartitionDirectory = SharedSchemaPartition.extract( sharedSchemaDir );
+            }
         }
         else
         {
-            SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( instanceLayout.getPartitionsDirectory() );
-            extractor.extractOrCopy();
-        }
+            schemaPartitionDirectory = new File( instanceLayout.getPartitionsDirectory(), "schema" );
 
-        SchemaLoader loader = new LdifSchemaLoader( schemaPartitionDirectory );
-        SchemaManager schemaManager = new DefaultSchemaManager( loader );
+            // Extract the schema on disk (a brand new one) and load the registries
+            if ( schemaPartitionDirectory.exists() )
+            {
+                log.warn( "schema partition already exists, skipping schema extraction" );
+            }
+            else
+            {
+                SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( instanceLayout.getPartitionsDirectory() );
+                extractor.extractOrCopy();
+            }
+        }
 
         // We have to load the schema now, otherwise we won't be able
         // to initialize the Partitions, as we won't be able to parse
         // and normalize their suffix Dn
+        SchemaManager schemaManager = loadSchemaManager( schemaPartitionDirectory );
+
+        service.setSchemaManager( schemaManager );
+
+        // Init the wrapped partition with schema
+        Partition wrappedPartition;
+        if ( sharedSchemaDir != null )
+        {
+            wrappedPartition = new SharedSchemaPartition( schemaManager, service.getDnFactory(), schemaPartitionDirectory );
+        }
+        else
+        {
+            LdifPartition schemaLdifPartition = new LdifPartition( schemaManager, service.getDnFactory() );
+            schemaLdifPartition.setPartitionPath( schemaPartitionDirectory.toURI() );
+            wrappedPartition = schemaLdifPartition;
+        }
+
+        // The schema partition
+        SchemaPartition schemaPartition = new SchemaPartition( schemaManager );
+        schemaPartition.setWrappedPartition( wrappedPartition );
+        service.setSchemaPartition( schemaPartition );
+    }
+
+    /**
+     * Loads every enabled schema in the given schema directory.
+     *
+     * @throws Exception if any of the schemas has errors
+     */
+    private SchemaManager loadSchemaManager( File schemaDirectory ) throws Exception
+    {
+        SchemaLoader loader = new LdifSchemaLoader( schemaDirectory );
+        SchemaManager schemaManager = new DefaultSchemaManager( loader );
         schemaManager.loadAllEnabled();
 
         List<Throwable> errors = schemaManager.getErrors();
@@ -260,25 +1205,49 @@ public class Server {
             throw new Exception( I18n.err( I18n.ERR_317, Exceptions.printErrors( errors ) ) );
         }
 
-        service.setSchemaManager( schemaManager );
+        return schemaManager;
+    }
 
-        // Init the LdifPartition with schema
-        LdifPartition schemaLdifPartition = new LdifPartition( schemaManager, service.getDnFactory() );
-        schemaLdifPartition.setPartitionPath( schemaPartitionDirectory.toURI() );
+    /**
+     * Creates an empty partition of the configured {@link Storage} type.
+     *
+     * @param partitionId The partition Id
+     * @param dnFactory The DN factory
+     * @return The new, uninitialized partition
+     */
+    private AbstractBTreePartition createPartition( String partitionId, DnFactory dnFactory )
+    {
+        AbstractBTreePartition partition;
+        if ( storage == Storage.MEMORY )
+        {
+            partition = new AvlPartition( service.getSchemaManager(), dnFactory );
+        }
+        else
+        {
+            partition = new LadleJdbmPartition( service.getSchemaManager(), dnFactory );
+            partition.setPartitionPath( new File( service.getInstanceLayout().getPartitionsDirectory(), partitionId ).toURI() );
+            if ( partitionCacheSize != null )
+            {
+                partition.setCacheSize( partitionCacheSize );
+            }
+            // the partition finds its entry cache by id when it initializes
+            configureCache( service.getCacheService(), partitionId, entryCacheSize );
+        }
+        partition.setId( partitionId );
+        if ( ephemeral )
+        {
+            // otherwise JDBM commits, and fsyncs its transaction log, after every change
+            partition.setSyncOnWrite( false );
+        }
 
-        // The schema partition
-        SchemaPartition schemaPartition = new SchemaPartition( schemaManager );
-        schemaPartition.setWrappedPartition( schemaLdifPartition );
-        service.setSchemaPartition( schemaPartition );
+        return partition;
     }
 
     private void initSystemPartition() throws Exception {
         // this is a MANDATORY partition
         // DO NOT add this via addPartition() method, trunk code complains about duplicate partition
         // while initializing
-        JdbmPartition systemPartition = new JdbmPartition( service.getSchemaManager(), service.getDnFactory() );
-        systemPartition.setId( "system" );
-        systemPartition.setPartitionPath( new File( service.getInstanceLayout().getPartitionsDirectory(), systemPartition.getId() ).toURI() );
+        AbstractBTreePartition systemPartition = createPartition( "system", service.getDnFactory() );
         systemPartition.setSuffixDn( new Dn( ServerDNConstants.SYSTEM_DN ) );
         systemPartition.setSchemaManager( service.getSchemaManager() );
 
@@ -300,14 +1269,38 @@ public class Server {
 
         for ( String attribute : attrs )
         {
-            indexedAttributes.add( new JdbmIndex( attribute, false ) );
+            if ( storage == Storage.MEMORY )
+            {
+                indexedAttributes.add( new AvlIndex( attribute, false ) );
+            }
+            else
+            {
+                JdbmIndex index = new JdbmIndex( attribute, false );
+                if ( indexCacheSize != null )
+                {
+                    index.setCacheSize( indexCacheSize );
+                }
+                indexedAttributes.add( index );
+            }
         }
 
-        ( ( JdbmPartition ) partition ).setIndexedAttributes( indexedAttributes );
+        ( ( AbstractBTreePartition ) partition ).setIndexedAttributes( indexedAttributes );
     }
 
     public void stop() throws LadleFatalException {
         if (!running) return;
+        if (indexAdvisor != null) {
+            indexAdvisor.report();
+        }
+        reportCacheStatistics();
+        if (ldapServer != null) {
+            // no more requests while the directory service goes away
+            ldapServer.stop();
+        }
+        if (ephemeral) {
+            stopEphemeral();
+            return;
+        }
         try {
             service.shutdown();
         } catch (Exception e) {
@@ -323,4 +1316,19 @@ public class Server {
             }
         }
     }
+
+    private void stopEphemeral() {
+        running = false;
+
+        final DirectoryService stoppedService = service;
+        TempDirReaper.discard(tempDir, new Runnable() {
+            public void run() {
+                try {
+                    stoppedService.shutdown();
+                } catch (Exception e) {
+                    log.warn("Shutdown of the discarded directory service failed", e);
+                }
+            }
+        });
+    }
 }
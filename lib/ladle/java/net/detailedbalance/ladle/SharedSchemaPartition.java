@@ -0,0 +1,246 @@
+package net.detailedbalance.ladle;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.ldif.LdifUtils;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schemaextractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory schema partition which is loaded from a schema directory that is shared between
+ * servers.  The directory is extracted once per ApacheDS version and is never written to; any
+ * changes made to the schema at runtime (e.g., custom schemas) only live in memory.
+ * <p>
+ * Custom schemas can instead be {@link #extract(File, Collection) compiled} into a copy of the
+ * shared directory, so that they are loaded along with the rest of the schema.
+ */
+class SharedSchemaPartition extends AvlPartition {
+    private static final Logger log = Logger.getLogger(SharedSchemaPartition.class);
+    private static final Pattern SIMPLE_FILE_NAME = Pattern.compile("[a-z][a-z0-9-]*=[a-z0-9._-]+");
+
+    private final File schemaDirectory;
+
+    public SharedSchemaPartition(SchemaManager schemaManager, DnFactory dnFactory, File schemaDirectory) {
+        super(schemaManager, dnFactory);
+        this.schemaDirectory = schemaDirectory;
+    }
+
+    /**
+     * Returns the shared schema directory for the running version of ApacheDS under
+     * <code>baseDir</code>, extracting it first if necessary.  Extraction happens in a staging
+     * directory which is renamed into place, so concurrent servers never see a partial schema.
+     *
+     * @return the directory containing <code>ou=schema.ldif</code>
+     */
+    public static File extract(File baseDir) throws IOException {
+        String version = DirectoryService.class.getPackage().getImplementationVersion();
+        File extracted = new File(baseDir, "apacheds-" + version);
+        File schemaDirectory = new File(extracted, "schema");
+        if (schemaDirectory.isDirectory()) {
+            return schemaDirectory;
+        }
+
+        if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+            throw new LadleFatalException("Could not create shared schema directory " + baseDir);
+        }
+        File staging = new File(baseDir, extracted.getName() + ".tmp-" + UUID.randomUUID());
+        try {
+            log.info("Extracting shared schema into " + extracted);
+            new DefaultSchemaLdifExtractor(staging).extractOrCopy();
+            if (!staging.renameTo(extracted) && !schemaDirectory.isDirectory()) {
+                throw new LadleFatalException("Could not move extracted schema to " + extracted);
+            }
+        } finally {
+            if (staging.exists()) {
+                FileUtils.deleteDirectory(staging);
+            }
+        }
+        return schemaDirectory;
+    }
+
+    /**
+     * Returns a shared schema directory like {@link #extract(File)}'s, but with the given custom
+     * schemas merged in, so that the schema manager loads and checks them in the same pass as
+     * the rest of the schema instead of each one being added (and everything checked again)
+     * after startup.  The merged directory is built once per ApacheDS version and set of custom
+     * schema contents.
+     *
+     * @return the directory containing <code>ou=schema.ldif</code>, or null if the custom
+     *   schemas can't be merged (e.g., they contain entries outside <code>ou=schema</code>), in
+     *   which case they have to be loaded after startup as usual
+     */
+    public static File extract(File baseDir, Collection<String> customSchemaFilenames)
+        throws IOException
+    {
+        File baseSchemaDirectory = extract(baseDir);
+        if (customSchemaFilenames.isEmpty()) {
+            return baseSchemaDirectory;
+        }
+
+        MessageDigest digest = SnapshotCache.newDigest();
+        for (String schemaFileName : customSchemaFilenames) {
+            SnapshotCache.updateFromFile(digest, schemaFileName);
+        }
+        File compiled = new File(baseDir,
+            baseSchemaDirectory.getParentFile().getName() + "-custom-" + SnapshotCache.toHex(digest));
+        File schemaDirectory = new File(compiled, "schema");
+        if (schemaDirectory.isDirectory()) {
+            return schemaDirectory;
+        }
+
+        // check everything can be merged before copying the whole schema
+        Map<String, String> merged = new LinkedHashMap<String, String>();
+        for (String schemaFileName : customSchemaFilenames) {
+            try {
+                if (!readMergeable(new File(schemaFileName), baseSchemaDirectory, merged)) {
+                    return null;
+                }
+            } catch (LdapException e) {
+                throw new LadleFatalException("Could not compile " + schemaFileName, e);
+            }
+        }
+
+        File staging = new File(baseDir, compiled.getName() + ".tmp-" + UUID.randomUUID());
+        try {
+            log.info("Compiling custom schemas into " + compiled);
+            File stagingSchemaDirectory = new File(staging, "schema");
+            FileUtils.copyDirectory(baseSchemaDirectory, stagingSchemaDirectory);
+            for (Map.Entry<String, String> file : merged.entrySet()) {
+                FileUtils.writeStringToFile(
+                    new File(stagingSchemaDirectory, file.getKey()), file.getValue(), "UTF-8");
+            }
+            if (!staging.renameTo(compiled) && !schemaDirectory.isDirectory()) {
+                throw new LadleFatalException("Could not move compiled schema to " + compiled);
+            }
+        } finally {
+            if (staging.exists()) {
+                FileUtils.deleteDirectory(staging);
+            }
+        }
+        return schemaDirectory;
+    }
+
+    /**
+     * Renders each entry in the custom schema as a file in the layout the schema loader and
+     * {@link org.apache.directory.server.core.partition.ldif.LdifPartition} use, keyed by its
+     * path relative to the schema directory.
+     *
+     * @return false if some entry can't be merged
+     */
+    private static boolean readMergeable(
+        File schemaFile, File baseSchemaDirectory, Map<String, String> merged
+    ) throws IOException, LdapException {
+        LdifReader reader = new LdifReader(schemaFile);
+        try {
+            for (LdifEntry ldifEntry : reader) {
+                String path = pathFor(ldifEntry.getDn());
+                if (!ldifEntry.isLdifContent() || path == null || merged.containsKey(path) ||
+                    new File(baseSchemaDirectory, path).exists()) {
+                    log.warn("Can't compile " + ldifEntry.getDn() + " from " + schemaFile +
+                        " into the schema; loading the custom schemas after startup instead");
+                    return false;
+                }
+                merged.put(path, "version: 1\n" + LdifUtils.convertToLdif(ldifEntry.getEntry()));
+            }
+        } finally {
+            reader.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return where the entry's file goes, relative to the schema directory, or null if it's
+     *   not under <code>ou=schema</code> or its name would need escaping
+     */
+    private static String pathFor(Dn dn) {
+        List<Rdn> rdns = dn.getRdns();
+        if (rdns.isEmpty() || !"ou=schema".equalsIgnoreCase(rdns.get(rdns.size() - 1).getName())) {
+            return null;
+        }
+
+        StringBuilder path = new StringBuilder();
+        for (int i = rdns.size() - 1; i >= 0; i--) {
+            String name = Strings.toLowerCase(rdns.get(i).getName());
+            if (!SIMPLE_FILE_NAME.matcher(name).matches()) {
+                return null;
+            }
+            path.append(name).append(i == 0 ? ".ldif" : File.separator);
+        }
+        return path.toString();
+    }
+
+    @Override
+    protected void doInit() throws Exception {
+        super.doInit();
+
+        CsnFactory csnFactory = new CsnFactory(0);
+        List<File> files = new ArrayList<File>();
+        collectLdifFiles(schemaDirectory, files);
+        for (File file : files) {
+            LdifReader reader = new LdifReader(file);
+            try {
+                for (LdifEntry ldifEntry : reader) {
+                    Entry entry = new DefaultEntry(schemaManager, ldifEntry.getEntry());
+                    if (entry.get(SchemaConstants.ENTRY_CSN_AT) == null) {
+                        entry.add(SchemaConstants.ENTRY_CSN_AT, csnFactory.newInstance().toString());
+                    }
+                    if (entry.get(SchemaConstants.ENTRY_UUID_AT) == null) {
+                        entry.add(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+                    }
+                    add(new AddOperationContext(null, entry));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        log.info("Loaded " + files.size() + " schema entries from " + schemaDirectory);
+    }
+
+    /**
+     * Lists the LDIF files in parent-before-child order.  Each entry <code>x.ldif</code> keeps
+     * its children in the sibling directory <code>x/</code>, so taking every file in a directory
+     * before descending into its subdirectories is enough.
+     */
+    private static void collectLdifFiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) return;
+        Arrays.sort(children);
+
+        for (File child : children) {
+            if (child.isFile() && child.getName().endsWith(".ldif")) {
+                files.add(child);
+            }
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectLdifFiles(child, files);
+            }
+        }
+    }
+}
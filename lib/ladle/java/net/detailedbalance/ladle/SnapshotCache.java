@@ -0,0 +1,135 @@
+package net.detailedbalance.ladle;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * An on-disk cache of fully-loaded <code>partitions</code> directories.  Each entry is keyed by a
+ * hash of everything that goes into building the partitions, so a {@link Server} started from the
+ * same inputs can copy a cached tree into its instance layout instead of extracting the schema
+ * and importing the LDIF again.
+ * <p>
+ * Entries are built in a private staging directory and renamed into place, so several processes
+ * may share one cache directory.  Entries are never modified once published; they are copied
+ * rather than linked because JDBM rewrites its files in place.
+ */
+class SnapshotCache {
+    private final Logger log = Logger.getLogger(getClass());
+
+    private final File cacheDir;
+
+    public SnapshotCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new LadleFatalException("Could not create snapshot cache directory " + cacheDir);
+        }
+    }
+
+    /**
+     * Computes the cache key for a server built from the given inputs.
+     */
+    public static String key(
+        String domainComponent, String ldifFileName, Collection<String> customSchemaFilenames,
+        Collection<String> indexedAttributes, boolean sharedSchema
+    ) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, "apacheds=" + DirectoryService.class.getPackage().getImplementationVersion());
+        update(digest, "domain=" + domainComponent);
+        update(digest, "indexes=" + indexedAttributes);
+        update(digest, "sharedSchema=" + sharedSchema);
+        for (String schemaFileName : customSchemaFilenames) {
+            update(digest, "schema=");
+            updateFromFile(digest, schemaFileName);
+        }
+        update(digest, "ldif=");
+        updateFromFile(digest, ldifFileName);
+        return toHex(digest);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new LadleFatalException("SHA-1 is not available", e);
+        }
+    }
+
+    static String toHex(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    static void update(MessageDigest digest, String value) throws IOException {
+        digest.update(value.getBytes("UTF-8"));
+        digest.update((byte) 0);
+    }
+
+    static void updateFromFile(MessageDigest digest, String filename) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(filename);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            if (in != null) in.close();
+        }
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Copies the cached partitions for the given key into <code>partitionsDir</code>.
+     *
+     * @return true if there was a cached entry, false otherwise
+     */
+    public boolean restore(String key, File partitionsDir) throws IOException {
+        File entry = new File(cacheDir, key);
+        if (!entry.isDirectory()) {
+            log.info("No cached partitions for " + key);
+            return false;
+        }
+
+        log.info("Restoring cached partitions from " + entry);
+        FileUtils.copyDirectory(entry, partitionsDir);
+        return true;
+    }
+
+    /**
+     * Publishes a copy of <code>partitionsDir</code> under the given key.  The partitions must
+     * have been synced to disk already.  If another process publishes the same key first, its
+     * copy is kept and this one is discarded.
+     */
+    public void store(String key, File partitionsDir) throws IOException {
+        File entry = new File(cacheDir, key);
+        if (entry.exists()) return;
+
+        File staging = new File(cacheDir, key + ".tmp-" + UUID.randomUUID());
+        try {
+            FileUtils.copyDirectory(partitionsDir, staging);
+            if (staging.renameTo(entry)) {
+                log.info("Cached partitions in " + entry);
+            } else {
+                log.info("Partitions for " + key + " were cached concurrently; discarding this copy");
+            }
+        } finally {
+            if (staging.exists()) {
+                FileUtils.deleteDirectory(staging);
+            }
+        }
+    }
+}
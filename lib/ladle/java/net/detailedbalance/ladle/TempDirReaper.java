@@ -0,0 +1,58 @@
+package net.detailedbalance.ladle;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Deletes the temporary directories of {@link Server#setEphemeral ephemeral} servers in the
+ * background, so that stopping a server doesn't wait for its files to be removed.  A directory
+ * is renamed as it is discarded; if the JVM exits before it has been deleted (as it does right
+ * after a server run from {@link Main} stops), whoever is waiting for the process (the ruby
+ * controller) deletes it.  Each server only ever deletes its own directory: others under the
+ * same base directory may belong to servers in other processes which are still shutting down.
+ */
+class TempDirReaper {
+    private static final Logger log = Logger.getLogger(TempDirReaper.class);
+    private static final String DISCARDED_SUFFIX = ".discarded";
+
+    private TempDirReaper() { }
+
+    /**
+     * Marks the directory discarded, then runs <code>beforeDeleting</code> (e.g., to close
+     * whatever still has files open in it) and deletes it in the background.
+     */
+    public static void discard(File dir, final Runnable beforeDeleting) {
+        final File discarded = new File(dir.getParentFile(), dir.getName() + DISCARDED_SUFFIX);
+        if (!dir.renameTo(discarded)) {
+            log.warn("Could not rename " + dir + " to " + discarded + "; deleting it in place");
+            delete(dir);
+            return;
+        }
+        inBackground("ladle-reaper", new Runnable() {
+            public void run() {
+                beforeDeleting.run();
+                delete(discarded);
+            }
+        });
+    }
+
+    private static void delete(File dir) {
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            // the ruby controller may be deleting it too
+            if (dir.exists()) {
+                log.error("Deleting the temporary directory " + dir + " failed", e);
+            }
+        }
+    }
+
+    private static void inBackground(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
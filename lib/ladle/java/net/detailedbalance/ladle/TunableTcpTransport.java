@@ -0,0 +1,33 @@
+package net.detailedbalance.ladle;
+
+import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A {@link TcpTransport} whose number of NIO processors can be set independently of its thread
+ * count.  ApacheDS uses the one thread count both for the acceptor's I/O processors and for the
+ * pool which executes LDAP requests, so a server tuned for many concurrent requests otherwise
+ * also ends up with as many selector threads.
+ */
+class TunableTcpTransport extends TcpTransport {
+    private final int processors;
+
+    public TunableTcpTransport(int port, int processors) {
+        super(port);
+        this.processors = processors;
+        // replace the acceptor the superclass constructor made
+        acceptor.dispose();
+        init();
+    }
+
+    @Override
+    public void init() {
+        NioSocketAcceptor nioAcceptor = new NioSocketAcceptor(processors);
+        nioAcceptor.setReuseAddress(true);
+        nioAcceptor.setBacklog(getBackLog());
+        nioAcceptor.setDefaultLocalAddress(new InetSocketAddress(getPort()));
+        acceptor = nioAcceptor;
+    }
+}
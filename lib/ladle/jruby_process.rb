@@ -59,7 +59,13 @@ module Ladle
     ##
     # @return [Fixnum] the PID for the process
     def pid
-      @pid ||= Java::OrgJrubyUtil::ShellLauncher.getPidFromProcess(@process)
+      @pid ||=
+        if @process.respond_to?(:pid)
+          # Java 9+; ShellLauncher can't see inside its Process there
+          @process.pid
+        else
+          Java::OrgJrubyUtil::ShellLauncher.getPidFromProcess(@process)
+        end
     end
   end
 end
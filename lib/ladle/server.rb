@@ -1,4 +1,7 @@
 require 'ladle'
+require 'json'
+require 'fileutils'
+require 'thread'
 require 'tmpdir'
 
 module Ladle
@@ -52,6 +55,94 @@ module Ladle
     # @return [Array<String>]
     attr_reader :additional_classpath
 
+    ##
+    # The directory in which loaded partitions are cached, if any.
+    # @return [String,nil]
+    attr_reader :snapshot_cache
+
+    ##
+    # The number of threads parsing the LDIF data, or nil to use one
+    # per processor.
+    # @return [Fixnum,nil]
+    attr_reader :load_threads
+
+    ##
+    # The directory holding the shared, pre-extracted schema, if any.
+    # @return [String,nil]
+    attr_reader :shared_schema
+
+    ##
+    # The kind of storage used for the server's data (`:jdbm` or
+    # `:memory`).
+    # @return [Symbol]
+    attr_reader :storage
+
+    ##
+    # The attributes indexed in the server's partition, or nil for
+    # the default set.
+    # @return [Array<String>,nil]
+    attr_reader :indexes
+
+    ##
+    # The number of entries cached by each JDBM index, or nil for the
+    # ApacheDS default.
+    # @return [Fixnum,nil]
+    attr_reader :index_cache_size
+
+    ##
+    # The number of NIO processors serving LDAP connections, or nil
+    # for the ApacheDS default.
+    # @return [Fixnum,nil]
+    attr_reader :transport_processors
+
+    ##
+    # The number of threads executing LDAP requests, or nil for the
+    # ApacheDS default.
+    # @return [Fixnum,nil]
+    attr_reader :transport_workers
+
+    ##
+    # The number of pending connections queued before new ones are
+    # refused, or nil for the ApacheDS default.
+    # @return [Fixnum,nil]
+    attr_reader :backlog
+
+    ##
+    # The most entries a search may return, or nil for the ApacheDS
+    # default.
+    # @return [Fixnum,nil]
+    attr_reader :max_size_limit
+
+    ##
+    # The most time (seconds) a search may take, or nil for the
+    # ApacheDS default.
+    # @return [Fixnum,nil]
+    attr_reader :max_time_limit
+
+    ##
+    # The number of entries cached by each JDBM partition, or nil for
+    # the ApacheDS default.
+    # @return [Fixnum,nil]
+    attr_reader :entry_cache_size
+
+    ##
+    # The number of parsed DNs cached, or nil for the ApacheDS
+    # default.
+    # @return [Fixnum,nil]
+    attr_reader :dn_cache_size
+
+    ##
+    # The number of alias lookups cached, or nil for the ApacheDS
+    # default.
+    # @return [Fixnum,nil]
+    attr_reader :alias_cache_size
+
+    ##
+    # The number of records cached by each JDBM partition, or nil for
+    # the ApacheDS default.
+    # @return [Fixnum,nil]
+    attr_reader :partition_cache_size
+
     ##
     # @param [Hash] opts the options for the server
     # @option opts [Fixnum] :port (3897) The port to serve from.
@@ -83,6 +174,84 @@ module Ladle
     #   server.
     # @option opts [String,Array<String>] :additional_classpath
     #   ([]) entries to add to the classpath for the embedded server.
+    # @option opts [Boolean] :bulk_load (false) if true, the LDIF data
+    #   is written directly into the server's partition rather than
+    #   being added one entry at a time through the full ApacheDS
+    #   interceptor chain.  This is much faster for large LDIFs, but
+    #   the entries are not validated against the schema.
+    # @option opts [Fixnum] :load_threads (the number of processors)
+    #   the number of threads which parse the LDIF data.  Entries are
+    #   still added one at a time, but may appear in the LDIF in any
+    #   order; children are held back until their parents are added.
+    # @option opts [String] :snapshot_cache (nil) a directory in which
+    #   to cache the server's fully-loaded partitions.  Later servers
+    #   started with the same domain, LDIF, custom schemas and indexes
+    #   copy the cached partitions instead of loading the LDIF again.
+    #   The directory may be shared by concurrently running servers.
+    # @option opts [String] :shared_schema (nil) a directory into
+    #   which the ApacheDS schema is extracted once and then shared,
+    #   read-only, by every server using the same directory.  Without
+    #   this, each server extracts its own copy of the schema.  Any
+    #   `:custom_schemas` are compiled into a copy of the shared
+    #   schema (once per set of schema contents), so that they don't
+    #   have to be loaded and checked again on every start.
+    # @option opts [Symbol] :storage (:jdbm) where the server keeps its
+    #   data.  `:jdbm` uses ApacheDS's file-backed partitions; `:memory`
+    #   keeps everything in memory, which avoids disk I/O entirely.
+    #   `:memory` cannot be combined with `:snapshot_cache`.
+    # @option opts [Boolean] :resettable (false) if true, the server
+    #   keeps a snapshot of its data once it has started so that
+    #   {#reset} can restore it.
+    # @option opts [String,Array<String>] :indexes (objectClass, ou,
+    #   dc and uid) the attributes to index.  Searches which filter
+    #   on unindexed attributes have to examine every candidate entry,
+    #   so index the attributes your searches use.  Replaces the
+    #   default set.
+    # @option opts [Fixnum] :index_cache_size (nil) the number of
+    #   entries each index keeps in memory.  Only applies to `:jdbm`
+    #   storage.
+    # @option opts [Boolean] :index_advisor (false) if true, the
+    #   server records the attributes used in search filters and, when
+    #   it stops, warns about each unindexed one which made a search
+    #   scan the directory.  A search which can use another attribute's
+    #   index, e.g. an AND with one indexed term, doesn't count.
+    # @option opts [Fixnum] :transport_processors (3) the number of
+    #   NIO processor threads reading and writing LDAP connections.
+    # @option opts [Fixnum] :transport_workers (3) the number of
+    #   threads executing LDAP requests.  Raise this when many clients
+    #   use the server at once.
+    # @option opts [Fixnum] :backlog (50) the number of connections
+    #   waiting to be accepted which are queued before new ones are
+    #   refused.  The operating system may cap this.
+    # @option opts [Boolean] :tcp_nodelay (true) whether to disable
+    #   Nagle's algorithm on LDAP connections.
+    # @option opts [Fixnum] :max_size_limit (100) the most entries a
+    #   search by anyone but the admin may return.  0 means no limit.
+    # @option opts [Fixnum] :max_time_limit (10000) the most time
+    #   (seconds) a search by anyone but the admin may take.  0 means
+    #   no limit.
+    # @option opts [Fixnum] :entry_cache_size (10000) the number of
+    #   entries each partition keeps in memory.  ApacheDS never makes
+    #   this smaller than `:partition_cache_size`.  Only applies to
+    #   `:jdbm` storage.
+    # @option opts [Fixnum] :dn_cache_size (10000) the number of
+    #   parsed DNs kept in memory.
+    # @option opts [Fixnum] :alias_cache_size (10000) the number of
+    #   alias lookups kept in memory.  As with the entry cache, this is
+    #   never smaller than `:partition_cache_size`.
+    # @option opts [Fixnum] :partition_cache_size (10000) the number
+    #   of records each partition's JDBM record manager keeps in
+    #   memory.  Only applies to `:jdbm` storage.
+    # @option opts [Boolean] :warm (false) if true, the server reads
+    #   every entry once before it reports that it has started, so
+    #   that the first searches don't pay for filling the caches.  The
+    #   caches' hit ratios are logged when the server stops.
+    # @option opts [Boolean] :ephemeral (false) if true, the JDBM
+    #   partitions don't sync after each write (JDBM's transaction
+    #   log stays on, but is only flushed periodically), and stopping
+    #   the server doesn't wait for the data to be flushed or for the
+    #   temporary files to be deleted.  They are deleted in the
+    #   background once the server process has exited.
     def initialize(opts={})
       @port = opts[:port] || 3897
       @domain = opts[:domain] || "dc=example,dc=org"
@@ -97,11 +266,36 @@ module Ladle
       @custom_schemas = opts[:custom_schemas] ? [*opts[:custom_schemas]] : []
       @additional_classpath =
         opts[:additional_classpath] ? [*opts[:additional_classpath]] : []
+      @bulk_load = opts[:bulk_load]
+      @load_threads = opts[:load_threads]
+      @snapshot_cache = opts[:snapshot_cache]
+      @shared_schema = opts[:shared_schema]
+      @storage = (opts[:storage] || :jdbm).to_sym
+      @resettable = opts[:resettable]
+      @indexes = opts[:indexes] ? [*opts[:indexes]] : nil
+      @index_cache_size = opts[:index_cache_size]
+      @index_advisor = opts[:index_advisor]
+      @transport_processors = opts[:transport_processors]
+      @transport_workers = opts[:transport_workers]
+      @backlog = opts[:backlog]
+      @tcp_nodelay = opts[:tcp_nodelay].nil? ? true : opts[:tcp_nodelay]
+      @max_size_limit = opts[:max_size_limit]
+      @max_time_limit = opts[:max_time_limit]
+      @entry_cache_size = opts[:entry_cache_size]
+      @dn_cache_size = opts[:dn_cache_size]
+      @alias_cache_size = opts[:alias_cache_size]
+      @partition_cache_size = opts[:partition_cache_size]
+      @warm = opts[:warm]
+      @ephemeral = opts[:ephemeral]
 
       # Additional arguments that can be passed to the java server
       # process.  Used for testing only, so not documented.
       @additional_args = opts[:more_args] || []
 
+      # The ServerPool which started this server, if any.  Set by the
+      # pool only, so not documented.
+      @pool = opts[:pool]
+
       unless @domain =~ /^dc=/i
         raise "The domain component must start with 'dc='.  '#{@domain}' does not."
       end
@@ -110,6 +304,10 @@ module Ladle
         raise "Tmpdir #{tmpdir.inspect} does not exist."
       end
 
+      unless [:jdbm, :memory].include?(@storage)
+        raise "Unknown storage #{@storage.inspect}.  Use :jdbm or :memory."
+      end
+
       unless File.readable?(@ldif)
         raise "Cannot read specified LDIF file #{@ldif}."
       end
@@ -155,15 +353,36 @@ module Ladle
       end
 
       trace "- Server started successfully"
-      at_exit { stop }
+      # a pool shuts down its own servers
+      at_exit { stop } unless @pool
 
       self
     end
 
     ##
-    # Stops the server that was started with {#start}.
+    # How long each step of the last {#start} took, in milliseconds,
+    # in the order the steps ran.  The steps are `schema`,
+    # `directory-service`, `custom-schemas`, `ldif` and `transport`,
+    # plus `snapshot-restore`, `snapshot-store` and `reset-snapshot`
+    # when the corresponding options are in use.  The LDIF data is
+    # read and parsed while the schema and directory service start, so
+    # `ldif` only covers the remainder of the load.
+    #
+    # @example
+    #   server.startup_phases # => {"schema"=>1210, "directory-service"=>480, ...}
+    #
+    # @return [Hash<String,Fixnum>]
+    def startup_phases
+      @controller ? @controller.phases.dup : {}
+    end
+
+    ##
+    # Stops the server that was started with {#start}.  If the server
+    # was handed out by a {ServerPool}, it goes back to the pool
+    # instead.
     def stop
       return if !@running
+      return if @pool && @pool.release(self)
       log "Stopping server on #{port}"
       trace "- Stopping server process"
       @controller.stop if @controller
@@ -171,10 +390,196 @@ module Ladle
       trace "- Signalling server process to stop if not already stopped"
       process.stop_gracefully
       process.wait
+      reap_discarded if ephemeral?
 
       @running = false
     end
 
+    ##
+    # Reverts every change made to the server's data since it was
+    # started.  Only the changed entries are touched, so this is much
+    # faster than restarting the server.  Requires that the server was
+    # created with `:resettable => true`.  If the reset fails, the
+    # server keeps running with its changes still tracked, so it may
+    # be retried.
+    #
+    # @return [Server] this instance
+    def reset
+      raise "This server was not created with :resettable => true." unless resettable?
+      raise "The server is not running." unless @running
+      trace "- Resetting server data"
+      reply = @controller.request("RESET", timeout)
+      unless reply
+        raise "LDAP server reset did not complete within #{timeout} seconds"
+      end
+      if reply =~ /^RESET FAILED (.*)/
+        raise "LDAP server reset failed: #{$1}"
+      end
+      self
+    end
+
+    ##
+    # Reports what the server has done since it started: for each of
+    # bind, search, add, modify and delete, the number of operations,
+    # how many failed and a summary of their latencies in
+    # microseconds.  Searches also report the number of entries
+    # returned and how many one-level or subtree searches could use
+    # an index versus how many had to scan.
+    #
+    # @example
+    #   server.stats["search"]["latency_us"]["p99"]
+    #
+    # @return [Hash] the statistics, as parsed from the server's JSON
+    def stats
+      raise "The server is not running." unless @running
+      reply = @controller.request("STATS", timeout)
+      raise "LDAP server did not answer STATS within #{timeout} seconds" unless reply
+      JSON.parse(reply.sub(/^STATS /, ''))
+    end
+
+    ##
+    # Adds another, independent partition to the running server.
+    # Each partition has its own suffix and data but shares the
+    # server's process, port, schema and storage settings, so many
+    # isolated directories (e.g., one per parallel test worker) can be
+    # served for roughly the cost of one.
+    #
+    # @param [String,Symbol] id a name for the partition, made of
+    #   letters, digits, underscores and dashes.  It must be unique
+    #   within the server.
+    # @param [Hash] opts the options for the partition
+    # @option opts [String] :domain the suffix for the partition,
+    #   e.g., "dc=worker1,dc=org".  Required.
+    # @option opts [String] :ldif the filename of the LDIF data to load
+    #   into the partition.  Required.
+    # @option opts [String,Array<String>] :custom_schemas ([]) LDIF
+    #   files of custom schemas the data needs.  Schemas are shared by
+    #   all of the server's partitions; ones already loaded are skipped.
+    # @option opts [Boolean] :allow_anonymous (true) whether anonymous
+    #   users may read the partition.  This cannot override a server
+    #   created with `:allow_anonymous => false`.
+    #
+    # @return [Fixnum] the number of entries loaded from the LDIF
+    def add_partition(id, opts={})
+      raise "The server is not running." unless @running
+      id = id.to_s
+      unless id =~ /\A[\w-]+\z/
+        raise "Partition id #{id.inspect} may only contain letters, digits, underscores and dashes."
+      end
+      unless opts[:domain] =~ /^dc=/i
+        raise "The domain component must start with 'dc='.  '#{opts[:domain]}' does not."
+      end
+      unless opts[:ldif] && File.readable?(opts[:ldif])
+        raise "Cannot read specified LDIF file #{opts[:ldif]}."
+      end
+      custom_schemas = opts[:custom_schemas] ? [*opts[:custom_schemas]] : []
+
+      message = [
+        "ADD_PARTITION", id,
+        "suffix=#{opts[:domain]}",
+        "ldif=#{File.expand_path(opts[:ldif])}",
+        ("schemas=#{custom_schemas.join(',')}" unless custom_schemas.empty?),
+        ("anonymous=false" if opts[:allow_anonymous] == false)
+      ].compact.join("\t")
+
+      trace "- Adding partition #{id}"
+      reply = partition_request(message)
+      reply.split(' ')[3].to_i
+    end
+
+    ##
+    # Removes a partition added with {#add_partition}, discarding its
+    # data.
+    #
+    # @param [String,Symbol] id the partition's id
+    # @return [Server] this instance
+    def remove_partition(id)
+      raise "The server is not running." unless @running
+      trace "- Removing partition #{id}"
+      partition_request("REMOVE_PARTITION\t#{id}")
+      self
+    end
+
+    ##
+    # Adds the entries in another LDIF file to the running server,
+    # e.g., to move a warm server to a different fixture without
+    # restarting it.  Like any other change, the entries are removed
+    # again by {#reset}.
+    #
+    # @param [String] ldif the filename of the LDIF data to add
+    # @return [Fixnum] the number of entries added
+    def load_ldif(ldif)
+      ldif_request("LOAD", ldif)
+    end
+
+    ##
+    # Applies the change records (`changetype: add`, `delete`,
+    # `modify`, `modrdn` or `moddn`) in an LDIF file to the running
+    # server, in order.  Records without a changetype are added.  If a
+    # change fails, the ones before it stay applied.
+    #
+    # @param [String] ldif the filename of the LDIF changes to apply
+    # @return [Fixnum] the number of changes applied
+    def apply_ldif(ldif)
+      ldif_request("APPLY", ldif)
+    end
+
+    ##
+    # Parses this server's LDIF, against its custom schemas, into a
+    # binary file which loads faster than the LDIF itself.  Give the
+    # compiled file as the `:ldif` of later servers with the same
+    # domain and custom schemas.  Only the ladle (i.e., ApacheDS)
+    # version which compiled the file can load it, and only with the
+    # same custom schemas; a server given any other compiled file
+    # fails to start.  The server must not be running.
+    #
+    # @param [String] output the filename to write the compiled data to
+    # @return [Fixnum] the number of entries compiled
+    def compile_ldif(output)
+      raise "The LDIF can't be compiled while the server is running." if @running
+
+      output = File.expand_path(output)
+      trace "- Compiling #{ldif} into #{output}"
+      java_in, java_out, java_err = create_process(*(server_cmd + ["--compile-ldif", output])).popen
+      java_in.close
+      LogStreamWatcher.new(java_err, self).start
+      result = java_out.read
+      process.wait
+
+      unless result =~ /^COMPILED (\d+) (\d+)/
+        raise "LDAP server could not compile #{ldif}: #{result[/^FATAL: (.*)/, 1] || result}"
+      end
+      trace "- Compiling #{$1} entries took #{$2}ms"
+      $1.to_i
+    end
+
+    ##
+    # Checks every entry in this server's LDIF against the schema
+    # and its custom schemas without starting the server, so that a
+    # broken fixture is found before paying for a full start.  All
+    # the problems are reported, not just the first.  The server
+    # must not be running.
+    #
+    # @return [Array<String>] the problems found, in order, each
+    #   starting with the line of the LDIF it is on.  Empty if the
+    #   LDIF is valid.
+    def validate_ldif
+      raise "The LDIF can't be validated while the server is running." if @running
+
+      trace "- Validating #{ldif}"
+      java_in, java_out, java_err = create_process(*(server_cmd + ["--validate"])).popen
+      java_in.close
+      LogStreamWatcher.new(java_err, self).start
+      result = java_out.read
+      process.wait
+
+      unless result =~ /^VALIDATED (\d+) (\d+) (\d+)/
+        raise "LDAP server could not validate #{ldif}: #{result[/^FATAL: (.*)/, 1] || result}"
+      end
+      trace "- Validating #{$1} entries took #{$3}ms; #{$2} problems"
+      result.scan(/^INVALID (.*)$/).flatten
+    end
+
     ##
     # Visible for collaborators.
     # @private
@@ -225,8 +630,99 @@ module Ladle
       @allow_anonymous
     end
 
+    ##
+    # Whether the LDIF data will be written directly into the
+    # server's partition instead of through the interceptor chain.
+    #
+    # @return [Boolean]
+    def bulk_load?
+      @bulk_load
+    end
+
+    ##
+    # Whether the server's data can be restored with {#reset}.
+    #
+    # @return [Boolean]
+    def resettable?
+      @resettable
+    end
+
+    ##
+    # Whether the server will report the unindexed attributes used in
+    # searches when it stops.
+    #
+    # @return [Boolean]
+    def index_advisor?
+      @index_advisor
+    end
+
+    ##
+    # Whether Nagle's algorithm is disabled on LDAP connections.
+    #
+    # @return [Boolean]
+    def tcp_nodelay?
+      @tcp_nodelay
+    end
+
+    ##
+    # Whether the server will read every entry into the caches before
+    # it reports that it has started.
+    #
+    # @return [Boolean]
+    def warm?
+      @warm
+    end
+
+    ##
+    # Whether the server's data is written without durability and
+    # discarded in the background when it stops.
+    #
+    # @return [Boolean]
+    def ephemeral?
+      @ephemeral
+    end
+
+    ##
+    # The reapers started by {#reap_discarded} which may still be
+    # running.
+    # @private
+    def self.reapers
+      @reapers ||= [].tap { |reapers| at_exit { reapers.each(&:join) } }
+    end
+
     private
 
+    ##
+    # An ephemeral server's process exits without waiting for its
+    # temporary directory, which it renames to `*.discarded`, to be
+    # deleted.  This deletes it in the background, along with any
+    # others left in the same tmpdir by processes which have exited.
+    # Directories belonging to live processes (e.g., other servers in
+    # a pool, or in a parallel test run, which are still shutting
+    # down) are left to them.  The deletions are waited for when ruby
+    # exits.
+    #
+    # @return [Thread]
+    def reap_discarded
+      reaper = Thread.new {
+        Dir[File.join(tmpdir, "ladle-server-*.discarded")].each { |dir|
+          owner = File.basename(dir)[/\Aladle-server-(\d+)-/, 1]
+          FileUtils.rm_rf(dir) if owner && !process_alive?(owner.to_i)
+        }
+      }
+      Server.reapers.delete_if { |r| !r.alive? } << reaper
+      reaper
+    end
+
+    def process_alive?(pid)
+      Process.kill(0, pid)
+      true
+    rescue Errno::ESRCH
+      false
+    rescue Errno::EPERM
+      true
+    end
+
     def create_process(*cmd)
       @process =
         if RUBY_PLATFORM == 'java'
@@ -240,6 +736,37 @@ module Ladle
       @process
     end
 
+    def partition_request(message)
+      command = message.split("\t").first
+      reply = control_request(message)
+      if reply =~ /^#{command} FAILED \S+ (.*)/
+        raise "LDAP server refused #{command}: #{$1}"
+      end
+      reply
+    end
+
+    def ldif_request(command, ldif)
+      raise "The server is not running." unless @running
+      raise "Cannot read specified LDIF file #{ldif}." unless File.readable?(ldif)
+
+      trace "- #{command} #{ldif}"
+      reply = control_request("#{command}\t#{File.expand_path(ldif)}")
+      if reply =~ /^#{command} FAILED (.*)/
+        raise "LDAP server could not #{command.downcase} #{ldif}: #{$1}"
+      end
+      count, millis = reply.split(' ')[2, 2].collect(&:to_i)
+      trace "- #{command} of #{count} records took #{millis}ms"
+      count
+    end
+
+    def control_request(message)
+      reply = @controller.request(message, timeout)
+      unless reply
+        raise "LDAP server did not answer #{message.split("\t").first} within #{timeout} seconds"
+      end
+      reply
+    end
+
     def server_cmd
       [
         java_bin,
@@ -251,6 +778,27 @@ module Ladle
         "--ldif", ldif,
         "--tmpdir", tmpdir,
         ("--no-anonymous" unless allow_anonymous?),
+        ("--bulk-load" if bulk_load?),
+        (["--load-threads", load_threads] if load_threads),
+        (["--snapshot-cache", snapshot_cache] if snapshot_cache),
+        (["--shared-schema", shared_schema] if shared_schema),
+        "--storage", storage.to_s,
+        ("--resettable" if resettable?),
+        (["--indexes", indexes.join(',')] if indexes),
+        (["--index-cache-size", index_cache_size] if index_cache_size),
+        ("--index-advisor" if index_advisor?),
+        (["--transport-processors", transport_processors] if transport_processors),
+        (["--transport-workers", transport_workers] if transport_workers),
+        (["--backlog", backlog] if backlog),
+        ("--no-tcp-nodelay" unless tcp_nodelay?),
+        (["--max-size-limit", max_size_limit] if max_size_limit),
+        (["--max-time-limit", max_time_limit] if max_time_limit),
+        (["--entry-cache-size", entry_cache_size] if entry_cache_size),
+        (["--dn-cache-size", dn_cache_size] if dn_cache_size),
+        (["--alias-cache-size", alias_cache_size] if alias_cache_size),
+        (["--partition-cache-size", partition_cache_size] if partition_cache_size),
+        ("--warm" if warm?),
+        ("--ephemeral" if ephemeral?),
         ([
             "--custom-schemas",
             custom_schemas.join(',')
@@ -276,8 +824,15 @@ module Ladle
         @ds_in = ds_in
         @ds_out = ds_out
         @server = server
+        @replies = Queue.new
+        @request_lock = Mutex.new
+        @requests_sent = 0
+        @replies_received = 0
+        @phases = {}
       end
 
+      attr_reader :phases
+
       def start
         Thread.new(self) do |controller|
           controller.watch
@@ -289,10 +844,15 @@ module Ladle
           case line
           when /^STARTED/
             @started = true
+          when /^PHASE (\S+) (\d+)/
+            @phases[$1] = $2.to_i
+            @server.trace("- Startup phase #{$1} took #{$2}ms")
           when /^FATAL/
             report_error(line)
           when /^STOPPED/
             @started = false
+          when /^[A-Z_]+ (OK|FAILED)\b/, /^STATS /
+            @replies << line
           else
             report_error("Unexpected server process output: #{line}")
           end
@@ -307,6 +867,34 @@ module Ladle
         @error
       end
 
+      ##
+      # Sends a control message and waits for the server to
+      # acknowledge it.  The server answers every message, in the
+      # order they were sent, so a late reply to an earlier request
+      # which timed out is discarded rather than taken for the answer
+      # to this one.
+      #
+      # @return [String,nil] the reply, or nil if it did not arrive in
+      #   time
+      def request(message, timeout)
+        @request_lock.synchronize do
+          @ds_in.puts(message)
+          @ds_in.flush
+          @requests_sent += 1
+
+          started_waiting = Time.now
+          loop do
+            until @replies.empty?
+              reply = @replies.pop
+              @replies_received += 1
+              return reply if @replies_received == @requests_sent
+            end
+            return nil if error? || Time.now >= started_waiting + timeout
+            sleep 0.05
+          end
+        end
+      end
+
       def stop
         unless @ds_in.closed?
           @ds_in.puts("STOP")
@@ -0,0 +1,251 @@
+require 'ladle'
+require 'thread'
+
+module Ladle
+  ##
+  # Keeps a few identically-configured servers started ahead of time,
+  # so that tests which each want a fresh server don't wait for a JVM
+  # and ApacheDS to boot every time.
+  #
+  # {#start} hands out one of the standby servers and starts another
+  # in the background to replace it.  When a server handed out this
+  # way is stopped, it is either recycled -- if it is resettable and
+  # the pool is short of standby servers, its data is
+  # {Server#reset reset} and it goes back into the pool -- or retired,
+  # i.e., its process really is stopped in the background.  Since the
+  # replacement is usually running by then, a server is only recycled
+  # when its replacement could not be started, e.g., for want of a
+  # free port.
+  # Partitions added with {Server#add_partition} are not removed, so
+  # remove them before stopping a server you want recycled.
+  #
+  # @example
+  #   pool = Ladle::ServerPool.new(:size => 2, :ports => 3897..3904,
+  #     :ldif => "test_users.ldif", :domain => "dc=test", :resettable => true)
+  #   server = pool.start  # already running
+  #   # ...
+  #   server.stop          # reset and back in the pool
+  class ServerPool
+    ##
+    # The number of servers kept started and waiting.
+    # @return [Fixnum]
+    attr_reader :size
+
+    ##
+    # The ports the pool's servers may use, one server per port.
+    # @return [Array<Fixnum>]
+    attr_reader :ports
+
+    ##
+    # @param [Hash] opts the options for the pool.  Any not listed
+    #   here are passed to each {Server#initialize}, except `:port`.
+    # @option opts [Fixnum] :size (2) the number of servers to keep
+    #   started and waiting.
+    # @option opts [Range,Array<Fixnum>] :ports (3897 up to twice
+    #   `:size` ports) the ports to serve from.  A server which is
+    #   handed out keeps its port until it is recycled or has finished
+    #   retiring, so give the pool more ports than `:size`.
+    def initialize(opts={})
+      @size = opts[:size] || 2
+      @ports = [*(opts[:ports] || (3897...(3897 + 2 * @size)))]
+      @server_opts = opts.reject { |k, v| [:size, :ports, :port].include?(k) }
+
+      if @size < 1
+        raise "The pool size must be at least 1."
+      end
+      if @ports.size < @size
+        raise "The pool needs at least #{@size} ports; #{@ports.size} given."
+      end
+      # checks the server options here rather than in a background thread
+      template
+
+      @lock = Mutex.new
+      @changed = ConditionVariable.new
+      @free_ports = @ports.dup
+      @standby = []
+      @handed_out = []
+      @starting = 0
+      @retiring = 0
+      @threads = []
+      @last_error = nil
+      @running = false
+    end
+
+    ##
+    # Hands out a running server, waiting for one to finish starting
+    # if necessary.  The first call starts the pool's servers.
+    #
+    # @return [Server] a started server, which will be recycled or
+    #   retired when it is {Server#stop stopped}
+    def start
+      server = @lock.synchronize do
+        unless @running
+          @running = true
+          at_exit { shutdown }
+        end
+        refill
+
+        waited_until = Time.now + template.timeout
+        while @standby.empty?
+          if @starting == 0 && @retiring == 0
+            raise(@last_error ?
+              "No server could be started for the pool: #{@last_error}" :
+              "All #{@ports.size} of the pool's ports are in use")
+          end
+          remaining = waited_until - Time.now
+          if remaining <= 0
+            raise "No pooled server started within #{template.timeout} seconds"
+          end
+          @changed.wait(@lock, remaining)
+        end
+
+        @standby.shift.tap { |s| @handed_out << s; refill }
+      end
+      template.trace "- Handing out pooled server on #{server.port}"
+      server
+    end
+
+    ##
+    # The number of servers started and waiting to be handed out.
+    #
+    # @return [Fixnum]
+    def standby_count
+      @lock.synchronize { @standby.size }
+    end
+
+    ##
+    # Stops every server the pool started, including ones which have
+    # been handed out, and stops refilling.  The pool is shut down
+    # automatically when ruby exits.
+    def shutdown
+      servers, threads = @lock.synchronize do
+        @running = false
+        servers = @standby + @handed_out
+        @standby = []
+        @handed_out = []
+        [servers, @threads.dup]
+      end
+      threads.each(&:join)
+      servers.each(&:stop)
+    end
+
+    ##
+    # Called by {Server#stop} for servers this pool handed out.
+    #
+    # @return [Boolean] whether the pool took the server back.  If
+    #   false, the server should stop as usual.
+    # @private
+    def release(server)
+      wanted = @lock.synchronize do
+        return false unless @running && @handed_out.delete(server)
+        short?
+      end
+
+      if wanted && recyclable?(server)
+        recycled = @lock.synchronize do
+          # another server may have filled the gap during the reset
+          if short?
+            @standby << server
+            @changed.broadcast
+            true
+          end
+        end
+        if recycled
+          template.trace "- Recycling pooled server on #{server.port}"
+          return true
+        end
+      end
+
+      template.trace "- Retiring pooled server on #{server.port}"
+      shut_down = @lock.synchronize do
+        @retiring += 1
+        # #shutdown may have come and gone during the reset, and it
+        # won't wait for threads started after it
+        in_background { retire(server) } if @running
+        !@running
+      end
+      retire(server) if shut_down
+      true
+    end
+
+    private
+
+    ##
+    # An unstarted server with the pool's options, for reading them
+    # back.
+    def template
+      @template ||= Server.new(@server_opts.merge(:port => @ports.first))
+    end
+
+    def recyclable?(server)
+      return false unless server.resettable?
+      server.reset
+      true
+    rescue => e
+      server.log_error "Could not reset pooled server on #{server.port}: #{e.message}"
+      false
+    end
+
+    def retire(server)
+      server.stop
+    ensure
+      @lock.synchronize do
+        @retiring -= 1
+        @free_ports << server.port
+        refill
+        @changed.broadcast
+      end
+    end
+
+    ##
+    # Whether there are fewer than {#size} servers started or starting.
+    # Must be called with the lock held.
+    def short?
+      @running && @standby.size + @starting < @size
+    end
+
+    ##
+    # Starts enough servers in the background to bring the standby
+    # count back up to {#size}.  Must be called with the lock held.
+    def refill
+      while short? && !@free_ports.empty?
+        port = @free_ports.shift
+        @starting += 1
+        in_background { start_standby(port) }
+      end
+    end
+
+    def start_standby(port)
+      server = Server.new(@server_opts.merge(:port => port, :pool => self))
+      begin
+        server.start
+      rescue => e
+        # leave the port out, as something else may be using it
+        server = nil
+        error = "port #{port}: #{e.message}"
+      end
+
+      shut_down = @lock.synchronize do
+        @starting -= 1
+        @last_error = error if error
+        if server && @running
+          @standby << server
+        elsif server
+          @free_ports << port
+        end
+        @changed.broadcast
+        !@running
+      end
+      # not stopped by #shutdown, since it wasn't in the pool yet
+      server.stop if server && shut_down
+    end
+
+    ##
+    # Runs the block in a new thread which {#shutdown} waits for.
+    # Must be called with the lock held.
+    def in_background(&block)
+      @threads.reject! { |t| !t.alive? }
+      @threads << Thread.new(&block)
+    end
+  end
+end
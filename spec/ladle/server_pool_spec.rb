@@ -0,0 +1,173 @@
+require File.expand_path("../../spec_helper.rb", __FILE__)
+
+require 'net/ldap'
+
+describe Ladle, "::ServerPool" do
+  def create_pool(opts = {})
+    default_opts = { :tmpdir => tmpdir, :size => 1, :ports => 3897..3899 }.merge(
+      ENV['LADLE_TRACE'] ? { :verbose => true } : { :quiet => true })
+    Ladle::ServerPool.new(default_opts.merge(opts))
+  end
+
+  def running?(port)
+    TCPSocket.new('localhost', port).close
+    true
+  rescue Errno::ECONNREFUSED
+    false
+  end
+
+  def wait_for(timeout = 60)
+    started_waiting = Time.now
+    sleep 0.2 until yield || Time.now > started_waiting + timeout
+  end
+
+  after do
+    @pool.shutdown if @pool
+
+    left_over_pids = `ps`.split("\n").grep(/net.detailedbalance.ladle.Main/).
+      collect { |line| line.split(/\s+/)[0].to_i }
+    left_over_pids.each { |pid|
+      $stderr.puts "Killing leftover process #{pid}"
+      Process.kill 15, pid
+    }
+    expect(left_over_pids).to be_empty
+  end
+
+  describe "initialization of" do
+    describe ":size" do
+      it "defaults to 2" do
+        expect(Ladle::ServerPool.new.size).to eq(2)
+      end
+
+      it "can be overridden" do
+        expect(Ladle::ServerPool.new(:size => 3).size).to eq(3)
+      end
+
+      it "must be at least 1" do
+        expect { Ladle::ServerPool.new(:size => 0) }.
+          to raise_error("The pool size must be at least 1.")
+      end
+    end
+
+    describe ":ports" do
+      it "defaults to twice the size, starting from 3897" do
+        expect(Ladle::ServerPool.new(:size => 2).ports).to eq([3897, 3898, 3899, 3900])
+      end
+
+      it "can be a range" do
+        expect(Ladle::ServerPool.new(:ports => 4200..4203).ports).to eq([4200, 4201, 4202, 4203])
+      end
+
+      it "must have at least one port per server" do
+        expect { Ladle::ServerPool.new(:size => 3, :ports => [4200, 4201]) }.
+          to raise_error("The pool needs at least 3 ports; 2 given.")
+      end
+    end
+
+    it "checks the server options" do
+      expect { Ladle::ServerPool.new(:domain => "foo") }.
+        to raise_error(/The domain component must start with 'dc='/)
+    end
+  end
+
+  describe "#start" do
+    before do
+      @pool = create_pool
+    end
+
+    it "hands out a running server" do
+      server = @pool.start
+      expect(running?(server.port)).to be true
+    end
+
+    it "starts a replacement in the background" do
+      first = @pool.start
+      wait_for { @pool.standby_count == 1 }
+      expect(@pool.standby_count).to eq(1)
+      expect(@pool.start.port).not_to eq(first.port)
+    end
+
+    it "reports when every port is in use" do
+      @pool = create_pool(:ports => [3897])
+      @pool.start
+      expect { @pool.start }.to raise_error("All 1 of the pool's ports are in use")
+    end
+  end
+
+  describe "stopping a pooled server" do
+    def uids(server)
+      Net::LDAP.new(:host => 'localhost', :port => server.port).
+        search(:base => 'dc=example,dc=org', :filter => Net::LDAP::Filter.pres('uid')).
+        collect { |res| res[:uid].first }.sort
+    end
+
+    it "recycles a resettable server with its data reset" do
+      # with only one port, the server can't have been replaced while it was out
+      @pool = create_pool(:resettable => true, :ports => [3897])
+      server = @pool.start
+      original = uids(server)
+      Net::LDAP.new(:host => 'localhost', :port => server.port,
+        :auth => { :method => :simple, :username => 'uid=admin,ou=system', :password => 'secret' }).
+        delete(:dn => "uid=hh153,ou=people,dc=example,dc=org")
+      server.stop
+
+      expect(@pool.standby_count).to eq(1)
+      expect(@pool.start).to equal(server)
+      expect(uids(server)).to eq(original)
+    end
+
+    it "retires a resettable server which has already been replaced" do
+      @pool = create_pool(:resettable => true)
+      server = @pool.start
+      wait_for { @pool.standby_count == 1 }
+      server.stop
+
+      expect(@pool.standby_count).to eq(1)
+      wait_for { !running?(server.port) }
+      expect(running?(server.port)).to be false
+    end
+
+    it "retires a resettable server which fails to reset" do
+      old_stderr, $stderr = $stderr, StringIO.new
+
+      @pool = create_pool(:resettable => true, :ports => [3897], :more_args => %w(--fail reset))
+      server = @pool.start
+      server.stop
+
+      replacement = @pool.start
+      expect(replacement).not_to equal(server)
+      expect(replacement.port).to eq(server.port)
+      expect($stderr.string).to match(/Could not reset pooled server on 3897/)
+
+      $stderr = old_stderr
+    end
+
+    it "starts a replacement on a retired server's port without overfilling" do
+      @pool = create_pool(:resettable => true, :ports => [3897, 3898])
+      first = @pool.start
+      wait_for { @pool.standby_count == 1 }
+      first.stop
+      # taking the standby server leaves the refill waiting for the retiring one's port
+      second = @pool.start
+      wait_for { @pool.standby_count == 1 }
+      sleep 2
+
+      expect(@pool.standby_count).to eq(1)
+      expect(@pool.start.port).to eq(first.port)
+      expect(second.port).not_to eq(first.port)
+    end
+
+    it "retires any other server" do
+      server = (@pool = create_pool).start
+      server.stop
+      wait_for { !running?(server.port) }
+      expect(running?(server.port)).to be false
+    end
+
+    it "is stopped by #shutdown" do
+      server = (@pool = create_pool).start
+      @pool.shutdown
+      expect(running?(server.port)).to be false
+    end
+  end
+end
@@ -193,6 +193,161 @@ describe Ladle, "::Server" do
       end
     end
 
+    describe ":bulk_load" do
+      it "defaults to false" do
+        expect(Ladle::Server.new.bulk_load?).to be_falsey
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:bulk_load => true).bulk_load?).to be_truthy
+      end
+    end
+
+    describe ":load_threads" do
+      it "defaults to nil" do
+        expect(Ladle::Server.new.load_threads).to be_nil
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:load_threads => 2).load_threads).to eq(2)
+      end
+    end
+
+    describe ":snapshot_cache" do
+      it "defaults to nil" do
+        expect(Ladle::Server.new.snapshot_cache).to be_nil
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:snapshot_cache => tmpdir('cache')).snapshot_cache).
+          to eq(tmpdir('cache'))
+      end
+    end
+
+    describe ":shared_schema" do
+      it "defaults to nil" do
+        expect(Ladle::Server.new.shared_schema).to be_nil
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:shared_schema => tmpdir('schema')).shared_schema).
+          to eq(tmpdir('schema'))
+      end
+    end
+
+    describe ":storage" do
+      it "defaults to :jdbm" do
+        expect(Ladle::Server.new.storage).to eq(:jdbm)
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:storage => :memory).storage).to eq(:memory)
+      end
+
+      it "rejects unknown kinds of storage" do
+        expect { Ladle::Server.new(:storage => :tape) }.
+          to raise_error("Unknown storage :tape.  Use :jdbm or :memory.")
+      end
+    end
+
+    describe ":resettable" do
+      it "defaults to false" do
+        expect(Ladle::Server.new.resettable?).to be_falsey
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:resettable => true).resettable?).to be_truthy
+      end
+    end
+
+    describe ":indexes" do
+      it "defaults to nil" do
+        expect(Ladle::Server.new.indexes).to be_nil
+      end
+
+      it "can be set from one attribute name" do
+        expect(Ladle::Server.new(:indexes => "mail").indexes).to eq(%w(mail))
+      end
+
+      it "can be set from a list" do
+        expect(Ladle::Server.new(:indexes => %w(uid mail)).indexes).to eq(%w(uid mail))
+      end
+    end
+
+    describe ":index_cache_size" do
+      it "defaults to nil" do
+        expect(Ladle::Server.new.index_cache_size).to be_nil
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:index_cache_size => 1000).index_cache_size).to eq(1000)
+      end
+    end
+
+    describe ":index_advisor" do
+      it "defaults to false" do
+        expect(Ladle::Server.new.index_advisor?).to be_falsey
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:index_advisor => true).index_advisor?).to be_truthy
+      end
+    end
+
+    [:transport_processors, :transport_workers, :backlog, :max_size_limit, :max_time_limit].each do |opt|
+      describe opt.inspect do
+        it "defaults to nil" do
+          expect(Ladle::Server.new.send(opt)).to be_nil
+        end
+
+        it "can be overridden" do
+          expect(Ladle::Server.new(opt => 7).send(opt)).to eq(7)
+        end
+      end
+    end
+
+    describe ":tcp_nodelay" do
+      it "defaults to true" do
+        expect(Ladle::Server.new.tcp_nodelay?).to be true
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:tcp_nodelay => false).tcp_nodelay?).to be false
+      end
+    end
+
+    [:entry_cache_size, :dn_cache_size, :alias_cache_size, :partition_cache_size].each do |opt|
+      describe opt.inspect do
+        it "defaults to nil" do
+          expect(Ladle::Server.new.send(opt)).to be_nil
+        end
+
+        it "can be overridden" do
+          expect(Ladle::Server.new(opt => 20000).send(opt)).to eq(20000)
+        end
+      end
+    end
+
+    describe ":warm" do
+      it "defaults to false" do
+        expect(Ladle::Server.new.warm?).to be_falsey
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:warm => true).warm?).to be_truthy
+      end
+    end
+
+    describe ":ephemeral" do
+      it "defaults to false" do
+        expect(Ladle::Server.new.ephemeral?).to be_falsey
+      end
+
+      it "can be overridden" do
+        expect(Ladle::Server.new(:ephemeral => true).ephemeral?).to be_truthy
+      end
+    end
+
     describe ":custom_schemas" do
       it "defaults to an empty list" do
         expect(Ladle::Server.new.custom_schemas).to eq([])
@@ -283,6 +438,415 @@ describe Ladle, "::Server" do
     end
   end
 
+  describe "resetting" do
+    def admin_ldap
+      Net::LDAP.new(
+        :host => 'localhost', :port => @server.port,
+        :auth => { :method => :simple, :username => "uid=admin,ou=system", :password => "secret" })
+    end
+
+    def mail_for(uid)
+      admin_ldap.search(
+        :base => 'dc=example,dc=org', :filter => Net::LDAP::Filter.eq('uid', uid)
+      ).collect { |res| res[:mail].first }
+    end
+
+    it "fails unless the server is resettable" do
+      @server.start
+      expect { @server.reset }.to raise_error(/not created with :resettable => true/)
+    end
+
+    it "fails when the server can't reset its data" do
+      @server = create_server(:resettable => true, :more_args => %w(--fail reset)).start
+      expect { @server.reset }.to raise_error(/reset failed: Expected failure for testing/)
+    end
+
+    describe "after a request which timed out" do
+      # Drives the controller over pipes, so that the server's reply can be held back.
+      before do
+        @to_server, @controller_in = IO.pipe
+        @controller_out, @from_server = IO.pipe
+        @controller = Ladle::Server::ApacheDSController.new(
+          @controller_in, @controller_out, double('server').as_null_object)
+        @watcher = @controller.start
+      end
+
+      after do
+        @from_server.close
+        @watcher.join
+        [@to_server, @controller_in, @controller_out].each { |io| io.close unless io.closed? }
+      end
+
+      it "ignores the late reply to it" do
+        expect(@controller.request("RESET", 0.2)).to be_nil
+        @from_server.puts "RESET OK"
+        @from_server.flush
+        answer = Thread.new {
+          2.times { @to_server.readline }
+          @from_server.puts 'STATS {}'
+          @from_server.flush
+        }
+        expect(@controller.request("STATS", 5)).to eq("STATS {}\n")
+        answer.join
+      end
+    end
+
+    describe "a resettable server" do
+      before do
+        @server = create_server(:resettable => true).start
+      end
+
+      it "returns the server object" do
+        expect(@server.reset).to be(@server)
+      end
+
+      it "reverts modified entries" do
+        original = mail_for('hh153')
+        admin_ldap.replace_attribute("uid=hh153,ou=people,dc=example,dc=org", :mail, "nobody@example.com")
+        @server.reset
+        expect(mail_for('hh153')).to eq(original)
+      end
+
+      it "restores deleted entries" do
+        admin_ldap.delete(:dn => "uid=hh153,ou=people,dc=example,dc=org")
+        @server.reset
+        expect(mail_for('hh153').size).to eq(1)
+      end
+
+      it "removes added entries" do
+        admin_ldap.add(
+          :dn => "uid=zz999,ou=people,dc=example,dc=org",
+          :attributes => {
+            :objectclass => %w(top person organizationalPerson inetOrgPerson),
+            :uid => 'zz999', :cn => 'Zed Zed', :sn => 'Zed'
+          })
+        @server.reset
+        expect(mail_for('zz999')).to eq([])
+      end
+
+      it "reverts entries added by clients while it was resetting" do
+        writing = true
+        writer = Thread.new {
+          ldap = admin_ldap
+          n = 0
+          while writing
+            ldap.add(
+              :dn => "uid=race#{n},ou=people,dc=example,dc=org",
+              :attributes => {
+                :objectclass => %w(top person organizationalPerson inetOrgPerson),
+                :uid => "race#{n}", :cn => 'Zed Zed', :sn => 'Zed'
+              })
+            n += 1
+          end
+        }
+        20.times { sleep 0.05; @server.reset }
+        writing = false
+        writer.join
+        @server.reset
+        expect(admin_ldap.search(
+          :base => 'dc=example,dc=org', :filter => Net::LDAP::Filter.eq('uid', 'race*'))).to eq([])
+      end
+    end
+  end
+
+  describe "startup phases" do
+    it "is empty before the server starts" do
+      expect(@server.startup_phases).to eq({})
+    end
+
+    it "times each step of startup" do
+      @server.start
+      expect(@server.startup_phases.keys).to eq(
+        %w(schema directory-service custom-schemas ldif transport))
+    end
+
+    it "includes warming the caches when requested" do
+      @server = create_server(:warm => true).start
+      expect(@server.startup_phases.keys).to include('warm')
+    end
+
+    it "reports whole milliseconds" do
+      @server.start
+      expect(@server.startup_phases.values.all? { |ms| ms.is_a?(Integer) && ms >= 0 }).to be true
+    end
+  end
+
+  describe "stats" do
+    before do
+      @server.start
+    end
+
+    def search_for(uid)
+      Net::LDAP.new(:host => 'localhost', :port => @server.port).
+        search(:base => 'dc=example,dc=org', :filter => Net::LDAP::Filter.eq('uid', uid))
+    end
+
+    it "reports each kind of operation" do
+      expect(@server.stats.keys).to eq(%w(bind search add modify delete))
+    end
+
+    it "counts searches and the entries they return" do
+      before = @server.stats["search"]
+      search_for('hh153')
+      search_for('nobody')
+      after = @server.stats["search"]
+      expect(after["count"] - before["count"]).to eq(2)
+      expect(after["entries"] - before["entries"]).to eq(1)
+    end
+
+    it "counts indexed searches" do
+      before = @server.stats["search"]["indexed"]
+      search_for('hh153')
+      expect(@server.stats["search"]["indexed"] - before).to eq(1)
+    end
+
+    it "summarizes latencies" do
+      search_for('hh153')
+      latency = @server.stats["search"]["latency_us"]
+      expect(latency.keys).to eq(%w(min mean p50 p90 p99 p999 max))
+      expect(latency["max"]).to be >= latency["p50"]
+    end
+  end
+
+  describe "loading at runtime" do
+    before do
+      @server = create_server(:resettable => true).start
+    end
+
+    def write_ldif(name, contents)
+      File.join(tmpdir('runtime'), name).tap { |path| File.open(path, 'w') { |f| f.write(contents) } }
+    end
+
+    def uids(filter)
+      Net::LDAP.new(:host => 'localhost', :port => @server.port).
+        search(:base => 'dc=example,dc=org', :filter => filter).collect { |res| res[:uid].first }
+    end
+
+    let(:extra_ldif) {
+      write_ldif('extra.ldif', <<-LDIF)
+version: 1
+
+dn: uid=zz999,ou=people,dc=example,dc=org
+objectClass: top
+objectClass: person
+objectClass: organizationalPerson
+objectClass: inetOrgPerson
+cn: Zed Zed
+sn: Zed
+uid: zz999
+      LDIF
+    }
+
+    let(:changes_ldif) {
+      write_ldif('changes.ldif', <<-LDIF)
+version: 1
+
+dn: uid=hh153,ou=people,dc=example,dc=org
+changetype: modify
+replace: mail
+mail: hilda.h@example.org
+-
+
+dn: uid=aa729,ou=people,dc=example,dc=org
+changetype: modrdn
+newrdn: uid=aa730
+deleteoldrdn: 1
+
+dn: uid=bb459,ou=people,dc=example,dc=org
+changetype: delete
+      LDIF
+    }
+
+    it "adds the entries from another LDIF" do
+      expect(@server.load_ldif(extra_ldif)).to eq(1)
+      expect(uids(Net::LDAP::Filter.eq('uid', 'zz999'))).to eq(%w(zz999))
+    end
+
+    it "applies changes in order" do
+      expect(@server.apply_ldif(changes_ldif)).to eq(3)
+      expect(uids(Net::LDAP::Filter.eq('mail', 'hilda.h@example.org'))).to eq(%w(hh153))
+      expect(uids(Net::LDAP::Filter.eq('uid', 'aa730'))).to eq(%w(aa730))
+      expect(uids(Net::LDAP::Filter.eq('uid', 'bb459'))).to eq([])
+    end
+
+    it "reports the change which failed" do
+      bad_ldif = write_ldif('bad.ldif', <<-LDIF)
+version: 1
+
+dn: uid=nobody,ou=people,dc=example,dc=org
+changetype: delete
+      LDIF
+      expect { @server.apply_ldif(bad_ldif) }.to raise_error(/Change 1 \(Delete uid=nobody/)
+    end
+
+    it "keeps running after a failure" do
+      expect { @server.load_ldif(extra_ldif); @server.load_ldif(extra_ldif) }.to raise_error(/could not load/)
+      expect(uids(Net::LDAP::Filter.eq('uid', 'zz999'))).to eq(%w(zz999))
+    end
+
+    it "is undone by reset" do
+      @server.load_ldif(extra_ldif)
+      @server.apply_ldif(changes_ldif)
+      @server.reset
+      expect(uids(Net::LDAP::Filter.eq('uid', 'zz999'))).to eq([])
+      expect(uids(Net::LDAP::Filter.eq('uid', 'bb459'))).to eq(%w(bb459))
+    end
+
+    it "requires a readable file" do
+      expect { @server.load_ldif('/nonexistent.ldif') }.to raise_error(/Cannot read/)
+    end
+  end
+
+  describe "validating" do
+    def write_ldif(name, contents)
+      File.join(tmpdir('validate'), name).tap { |path| File.open(path, 'w') { |f| f.write(contents) } }
+    end
+
+    it "finds nothing wrong with the default LDIF" do
+      expect(create_server.validate_ldif).to eq([])
+    end
+
+    it "checks against the custom schemas" do
+      expect(create_server(
+        :ldif => File.expand_path("../animals-custom.ldif", __FILE__),
+        :domain => "dc=example,dc=net",
+        :custom_schemas => File.expand_path("../animals-custom-schema.ldif", __FILE__)
+      ).validate_ldif).to eq([])
+    end
+
+    describe "an invalid LDIF" do
+      let(:problems) {
+        create_server(:ldif => write_ldif('invalid.ldif', <<-LDIF)).validate_ldif
+version: 1
+
+dn: ou=people,dc=example,dc=org
+objectClass: organizationalUnit
+ou: people
+
+dn: uid=aa,ou=people,dc=example,dc=org
+objectClass: inetOrgPerson
+uid: aa
+sn: Aa
+
+dn: uid=bb,ou=nowhere,dc=example,dc=org
+objectClass: inetOrgPerson
+uid: bb
+cn: Bb
+sn: Bb
+
+dn: uid=cc,ou=people,dc=example,dc=org
+objectClass: inetOrgPerson
+uid: cc
+cn: Cc
+sn: Cc
+frobnitz: yes
+        LDIF
+      }
+
+      it "reports every problem" do
+        expect(problems.size).to eq(3)
+      end
+
+      it "reports the line of each problem" do
+        expect(problems.collect { |p| p[/^line (\d+)/, 1].to_i }).to eq([7, 12, 18])
+      end
+
+      it "reports a missing required attribute" do
+        expect(problems[0]).to match(/uid=aa,.* is missing required attribute cn/)
+      end
+
+      it "reports a missing parent" do
+        expect(problems[1]).to match(/uid=bb,.* has no parent/)
+      end
+    end
+  end
+
+  describe "load testing" do
+    # The load test has no ruby API; it is run through the java server's command line.
+    def load_test(mix)
+      cmd = create_server.send(:server_cmd) + ["--load-test", mix, "--load-seconds", "1"]
+      # the FATAL line is on stdout; keep the stack trace that follows it on stderr out of the run
+      IO.popen(cmd.collect(&:to_s), :err => File::NULL) { |java_out| java_out.read }
+    end
+
+    it "prints the results of each operation in the mix" do
+      output = load_test("bind=1,equality=1")
+      counts = output.scan(/^(bind|subtree|equality|modify|total) +(\d+)/)
+      expect(counts.collect(&:first)).to eq(%w(bind equality total))
+      expect(counts.collect { |op, count| count.to_i }).to all(be > 0)
+    end
+
+    it "fails on an unknown operation" do
+      expect(load_test("bind=1,frobnicate=2")).to match(/^FATAL: Bad load test mix "frobnicate=2"/)
+    end
+  end
+
+  describe "partitions" do
+    def animals_ldif
+      File.expand_path("../animals.ldif", __FILE__)
+    end
+
+    def search_animals(auth={ :method => :anonymous })
+      ldap = Net::LDAP.new(:host => 'localhost', :port => @server.port, :auth => auth)
+      ldap.search(:base => 'dc=example,dc=net', :filter => Net::LDAP::Filter.pres('uid')) || []
+    end
+
+    before do
+      @server.start
+    end
+
+    it "returns the number of entries loaded" do
+      expect(@server.add_partition(:animals, :domain => "dc=example,dc=net", :ldif => animals_ldif)).
+        to eq(3)
+    end
+
+    it "serves the added data alongside the original data" do
+      @server.add_partition(:animals, :domain => "dc=example,dc=net", :ldif => animals_ldif)
+      expect(search_animals.size).to eq(2)
+    end
+
+    it "loads custom schemas for the partition" do
+      @server.add_partition(:animals,
+        :domain => "dc=example,dc=net",
+        :ldif => File.expand_path("../animals-custom.ldif", __FILE__),
+        :custom_schemas => File.expand_path("../animals-custom-schema.ldif", __FILE__))
+      ldap = Net::LDAP.new(:host => 'localhost', :port => @server.port)
+      expect(ldap.search(:base => 'dc=example,dc=net', :filter => Net::LDAP::Filter.pres('species')).
+        collect { |r| r[:species].first }.sort).to eq(["Meles meles", "Orycteropus afer"])
+    end
+
+    it "can hide a partition from anonymous users" do
+      @server.add_partition(:animals,
+        :domain => "dc=example,dc=net", :ldif => animals_ldif, :allow_anonymous => false)
+      expect(search_animals).to eq([])
+      expect(search_animals(
+        :method => :simple, :username => "uid=admin,ou=system", :password => "secret").size).to eq(2)
+    end
+
+    it "removes the partition's data" do
+      @server.add_partition(:animals, :domain => "dc=example,dc=net", :ldif => animals_ldif)
+      @server.remove_partition(:animals)
+      expect(search_animals).to eq([])
+    end
+
+    it "refuses a duplicate id" do
+      @server.add_partition(:animals, :domain => "dc=example,dc=net", :ldif => animals_ldif)
+      expect {
+        @server.add_partition(:animals, :domain => "dc=example,dc=com", :ldif => animals_ldif)
+      }.to raise_error(/already a partition named "animals"/)
+    end
+
+    it "refuses to remove an unknown partition" do
+      expect { @server.remove_partition(:zoo) }.to raise_error(/no partition named "zoo"/)
+    end
+
+    it "requires a dc= domain" do
+      expect {
+        @server.add_partition(:animals, :domain => "o=animals", :ldif => animals_ldif)
+      }.to raise_error(/must start with 'dc='/)
+    end
+  end
+
   describe "LDAP implementation" do
     def with_ldap(params={})
       @server.start
@@ -306,7 +870,55 @@ describe Ladle, "::Server" do
       }
     end
 
+    describe "transport" do
+      it "limits the entries a search returns" do
+        @server = create_server(:max_size_limit => 5)
+        with_ldap { |ldap|
+          results = ldap.search(:base => 'dc=example,dc=org', :filter => Net::LDAP::Filter.pres('uid'))
+          expect(ldap.get_operation_result.code).to eq(4) # sizeLimitExceeded
+          expect(results.size).to eq(5)
+        }
+      end
+
+      it "can be unlimited" do
+        @server = create_server(:max_size_limit => 0)
+        expect(ldap_search(Net::LDAP::Filter.pres('uid')).size).to eq(26)
+      end
+
+      it "serves many clients at once with tuned pools" do
+        @server = create_server(
+          :transport_processors => 2, :transport_workers => 8, :backlog => 200,
+          :tcp_nodelay => false)
+        @server.start
+        counts = (1..20).collect {
+          Thread.new {
+            Net::LDAP.new(:host => 'localhost', :port => @server.port).
+              search(:base => 'dc=example,dc=org', :filter => Net::LDAP::Filter.pres('uid')).size
+          }
+        }.collect(&:value)
+        expect(counts.uniq).to eq([26])
+      end
+    end
+
     describe "data" do
+      shared_examples_for "the default data" do
+        it "has 26 people" do
+          expect(ldap_search(Net::LDAP::Filter.pres('uid')).size).to eq(26)
+        end
+
+        it "can be searched by value" do
+          expect(ldap_search(Net::LDAP::Filter.eq(:givenname, 'Josephine')).
+            collect { |res| res[:uid].first }).to eq(%w(jj243))
+        end
+
+        it "permits binding" do
+          with_ldap do |ldap|
+            ldap.authenticate("uid=hh153,ou=people,dc=example,dc=org", "hatfield".reverse)
+            expect(ldap.bind).to be_truthy
+          end
+        end
+      end
+
       describe "the default set" do
         it "has 26 people" do
           expect(ldap_search(Net::LDAP::Filter.pres('uid')).size).to eq(26)
@@ -351,6 +963,127 @@ describe Ladle, "::Server" do
         end
       end
 
+      describe "with children before their parents" do
+        before do
+          records = File.read(File.expand_path("../animals.ldif", __FILE__)).split(/\n\n+/)
+          ldif = File.join(tmpdir('unordered'), "animals.ldif")
+          File.open(ldif, 'w') { |f| f.write(records.reverse.join("\n\n")) }
+
+          @server = create_server(:domain => "dc=example,dc=net", :ldif => ldif, :load_threads => 2)
+        end
+
+        it "has all the individuals" do
+          expect(ldap_search(Net::LDAP::Filter.pres('uid'), 'dc=example,dc=net').
+            collect { |result| result[:givenname].first }.sort).to eq(%w(Ada Bob))
+        end
+      end
+
+      describe "bulk loaded" do
+        before do
+          @server = create_server(:bulk_load => true)
+        end
+
+        it_behaves_like "the default data"
+      end
+
+      describe "in memory" do
+        before do
+          @server = create_server(:storage => :memory)
+        end
+
+        it_behaves_like "the default data"
+      end
+
+      describe "with custom indexes" do
+        before do
+          @server = create_server(:indexes => %w(objectClass uid mail cn), :index_cache_size => 500)
+        end
+
+        it "can be searched by an indexed value" do
+          expect(ldap_search(Net::LDAP::Filter.eq(:mail, 'josephine@example.org')).
+            collect { |res| res[:uid].first }).to eq(%w(jj243))
+        end
+      end
+
+      describe "from a snapshot cache" do
+        before do
+          @server = create_server(:snapshot_cache => tmpdir('cache'))
+        end
+
+        it "populates the cache on the first start" do
+          @server.start
+          expect(Dir["#{tmpdir}/cache/*"].size).to eq(1)
+        end
+
+        it "has the same data when started from the cache" do
+          @server.start
+          @server.stop
+          expect(ldap_search(Net::LDAP::Filter.pres('uid')).size).to eq(26)
+        end
+      end
+
+      describe "ephemeral" do
+        before do
+          @server = create_server(:ephemeral => true)
+        end
+
+        it_behaves_like "the default data"
+
+        it "deletes its temporary files once the process has exited" do
+          @server.start
+          @server.stop
+          Ladle::Server.reapers.each(&:join)
+          expect(Dir["#{tmpdir}/ladle-server-*"]).to eq([])
+        end
+
+        describe "with directories discarded by other processes" do
+          def discarded_by(pid)
+            FileUtils.mkdir_p("#{tmpdir}/ladle-server-#{pid}-elsewhere.discarded").first
+          end
+
+          def start_and_stop
+            @server.start
+            @server.stop
+            Ladle::Server.reapers.each(&:join)
+          end
+
+          it "leaves those of live processes alone" do
+            live = discarded_by(Process.pid)
+            start_and_stop
+            expect(File.directory?(live)).to be true
+          end
+
+          it "deletes those of processes which have exited" do
+            exited = discarded_by(Process.spawn('true').tap { |pid| Process.wait(pid) })
+            start_and_stop
+            expect(File.directory?(exited)).to be false
+          end
+        end
+      end
+
+      describe "compiled" do
+        before do
+          compiled = "#{tmpdir}/default.cldif"
+          expect(create_server.compile_ldif(compiled)).to eq(27)
+          @server = create_server(:ldif => compiled)
+        end
+
+        it_behaves_like "the default data"
+
+        it "is recognized by its contents rather than its name" do
+          disguised = File.join(tmpdir('disguised'), "default.ldif")
+          FileUtils.cp(@server.ldif, disguised)
+          @server = create_server(:ldif => disguised)
+          expect(ldap_search(Net::LDAP::Filter.pres('uid')).size).to eq(26)
+        end
+
+        it "is refused by a server with other custom schemas" do
+          @server = create_server(:ldif => @server.ldif,
+            :custom_schemas => File.expand_path("../animals-custom-schema.ldif", __FILE__))
+          expect { @server.start }.to raise_error(/failed to start/)
+        end
+      end
+
       describe "with a custom schema" do
         before do
           @server = create_server(
@@ -364,6 +1097,27 @@ describe Ladle, "::Server" do
           expect(ldap_search(Net::LDAP::Filter.pres('species'), 'dc=example,dc=net').
             collect { |r| r[:species].first }.sort).to eq(["Meles meles", "Orycteropus afer"])
         end
+
+        describe "and a shared schema" do
+          before do
+            @server = create_server(
+              :ldif => File.expand_path("../animals-custom.ldif", __FILE__),
+              :domain => "dc=example,dc=net",
+              :custom_schemas => File.expand_path("../animals-custom-schema.ldif", __FILE__),
+              :shared_schema => tmpdir('schema')
+            )
+          end
+
+          it "has the data defined in the schema" do
+            expect(ldap_search(Net::LDAP::Filter.pres('species'), 'dc=example,dc=net').
+              collect { |r| r[:species].first }.sort).to eq(["Meles meles", "Orycteropus afer"])
+          end
+
+          it "compiles the custom schema into the shared one" do
+            @server.start
+            expect(Dir["#{tmpdir}/schema/apacheds-*-custom-*/schema/ou=schema/cn=other/ou=attributetypes/*"].size).to eq(1)
+          end
+        end
       end
     end
 
@@ -0,0 +1,153 @@
+package net.detailedbalance.ladle.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Writes a synthetic but realistic directory as LDIF: people (inetOrgPersons with names, mail,
+ * phone numbers, titles and departments) under <code>ou=people</code> and groupOfNames under
+ * <code>ou=groups</code>, about one group for every 100 people.  The output only depends on the
+ * size, domain and seed, so benchmark runs are reproducible without any external data.
+ * <p>
+ * Each person's uid is <code>u</code> followed by their index (e.g., <code>u42</code>) and their
+ * password is their uid reversed, so clients can pick a person to bind as without reading the
+ * data back.
+ */
+public class DirectoryGenerator {
+    private static final String[] FIRST_NAMES = {
+        "Alexandra", "Belle", "Claire", "Dorothy", "Elizabeth", "Freya", "Grace", "Hilda",
+        "Iona", "Josephine", "Kelly", "Leah", "Mona", "Noel", "Ophelia", "Penelope", "Quin",
+        "Ruth", "Serena", "Talia", "Ursula", "Vera", "Wendy", "Xara", "Yvette", "Zana",
+        "Arthur", "Bruno", "Calvin", "Dmitri", "Edgar", "Felix", "Gideon", "Hector"
+    };
+    private static final String[] LAST_NAMES = {
+        "Adams", "Baldwin", "Carpenter", "Dawson", "Emerson", "Fuller", "Gonzales", "Hatfield",
+        "Ingram", "Jackson", "Kline", "Lawrence", "Maddox", "Nash", "Osborn", "Patel", "Queen",
+        "Rowland", "Solomon", "Torres", "Underwood", "Vickers", "Wise", "Xiong", "Yates",
+        "Zimmerman", "Okafor", "Nakamura", "Lindqvist", "Moreau", "Kowalski", "Haddad"
+    };
+    private static final String[] DEPARTMENTS = {
+        "Engineering", "Finance", "Human Resources", "Legal", "Marketing", "Operations",
+        "Research", "Sales", "Support"
+    };
+    private static final String[] TITLES = {
+        "Analyst", "Associate", "Director", "Engineer", "Manager", "Specialist", "Coordinator"
+    };
+
+    private final String domain;
+    private final String mailDomain;
+    private final long seed;
+
+    public DirectoryGenerator(String domain, long seed) {
+        this.domain = domain;
+        this.mailDomain = domain.replaceAll("(?i)dc=", "").replace(',', '.');
+        this.seed = seed;
+    }
+
+    public static String uid(int index) {
+        return "u" + index;
+    }
+
+    public static String password(int index) {
+        return new StringBuilder(uid(index)).reverse().toString();
+    }
+
+    public String personDn(int index) {
+        return "uid=" + uid(index) + ",ou=people," + domain;
+    }
+
+    public String mail(int index) {
+        return uid(index) + '@' + mailDomain;
+    }
+
+    /**
+     * @return the number of entries written
+     */
+    public int write(File ldif, int people) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(ldif), "UTF-8"));
+        try {
+            return write(out, people);
+        } finally {
+            out.close();
+        }
+    }
+
+    public int write(Writer out, int people) throws IOException {
+        Random random = new Random(seed);
+        int entries = 0;
+
+        out.write("version: 1\n\n");
+        entries += writeOrganizationalUnit(out, "people");
+        entries += writeOrganizationalUnit(out, "groups");
+
+        for (int i = 0; i < people; i++) {
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            out.write("dn: " + personDn(i) + '\n');
+            out.write("objectClass: top\n");
+            out.write("objectClass: person\n");
+            out.write("objectClass: organizationalPerson\n");
+            out.write("objectClass: inetOrgPerson\n");
+            out.write("uid: " + uid(i) + '\n');
+            out.write("cn: " + first + ' ' + last + '\n');
+            out.write("givenName: " + first + '\n');
+            out.write("sn: " + last + '\n');
+            out.write("mail: " + mail(i) + '\n');
+            out.write("telephoneNumber: +1 555 " + String.format("%07d", random.nextInt(10000000)) + '\n');
+            out.write("title: " + TITLES[random.nextInt(TITLES.length)] + '\n');
+            out.write("departmentNumber: " + DEPARTMENTS[random.nextInt(DEPARTMENTS.length)] + '\n');
+            out.write("employeeNumber: " + (100000 + i) + '\n');
+            out.write("userPassword: " + password(i) + '\n');
+            out.write('\n');
+            entries++;
+        }
+
+        int groups = Math.max(1, people / 100);
+        for (int g = 0; g < groups; g++) {
+            out.write("dn: cn=group" + g + ",ou=groups," + domain + '\n');
+            out.write("objectClass: top\n");
+            out.write("objectClass: groupOfNames\n");
+            out.write("cn: group" + g + '\n');
+            int members = people == 0 ? 0 : 1 + random.nextInt(Math.min(people, 200));
+            if (members == 0) {
+                // groupOfNames needs at least one member
+                out.write("member: " + domain + '\n');
+            }
+            for (int m = 0; m < members; m++) {
+                out.write("member: " + personDn(random.nextInt(people)) + '\n');
+            }
+            out.write('\n');
+            entries++;
+        }
+
+        return entries;
+    }
+
+    private int writeOrganizationalUnit(Writer out, String ou) throws IOException {
+        out.write("dn: ou=" + ou + ',' + domain + '\n');
+        out.write("objectClass: top\n");
+        out.write("objectClass: organizationalUnit\n");
+        out.write("ou: " + ou + '\n');
+        out.write('\n');
+        return 1;
+    }
+
+    /**
+     * Usage: <code>DirectoryGenerator people output.ldif [domain] [seed]</code>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: DirectoryGenerator people output.ldif [domain] [seed]");
+            System.exit(1);
+        }
+        String domain = args.length > 2 ? args[2] : "dc=example,dc=org";
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int entries = new DirectoryGenerator(domain, seed).write(new File(args[1]), Integer.parseInt(args[0]));
+        System.err.println("Wrote " + entries + " entries to " + args[1]);
+    }
+}
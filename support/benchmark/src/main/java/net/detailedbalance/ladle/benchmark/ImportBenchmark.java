@@ -0,0 +1,94 @@
+package net.detailedbalance.ladle.benchmark;
+
+import net.detailedbalance.ladle.Server;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a server takes to start over a generated directory of the given size.  The
+ * difference from {@link StartupBenchmark} is the LDIF import.  The <code>entries</code>
+ * secondary result divided by the score gives the import rate; the server also logs the rate of
+ * each load itself.
+ * <p>
+ * The 100k-entry case takes several minutes per invocation with the default JDBM storage, so
+ * narrow the parameters with <code>-p</code> when iterating.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ImportBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    public int people;
+
+    @Param({ "false", "true" })
+    public boolean bulkLoad;
+
+    @Param({ "JDBM" })
+    public Server.Storage storage;
+
+    private File data;
+    private File ldif;
+    private int entries;
+    private File scratch;
+    private Server server;
+
+    /**
+     * The number of entries imported, reported alongside the timing.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Imported {
+        public long entries;
+    }
+
+    @Setup(Level.Trial)
+    public void generateData() throws Exception {
+        data = Servers.createScratchDirectory("import-data");
+        ldif = new File(data, "people.ldif");
+        entries = new DirectoryGenerator(Servers.DOMAIN, 0).write(ldif, people);
+    }
+
+    @Setup(Level.Invocation)
+    public void createServer() throws Exception {
+        scratch = Servers.createScratchDirectory("import");
+        server = Servers.create(ldif, scratch);
+        server.setBulkLoad(bulkLoad);
+        server.setStorage(storage);
+    }
+
+    @Benchmark
+    public Server importData(Imported imported) throws Exception {
+        server.start();
+        imported.entries += entries;
+        return server;
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopServer() throws Exception {
+        server.stop();
+        Servers.deleteScratchDirectory(scratch);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteData() throws Exception {
+        Servers.deleteScratchDirectory(data);
+    }
+}
@@ -0,0 +1,134 @@
+package net.detailedbalance.ladle.benchmark;
+
+import net.detailedbalance.ladle.Server;
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures bind and search throughput over LDAP, i.e., through the server's TCP transport, with
+ * several concurrent clients each holding their own connection.  Use <code>-t</code> to change
+ * the number of clients.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class LdapBenchmark {
+    /**
+     * One server for the whole trial, shared by every client thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Directory {
+        @Param({ "10000" })
+        public int people;
+
+        @Param({ "JDBM", "MEMORY" })
+        public Server.Storage storage;
+
+        private File scratch;
+        private Server server;
+        private int port;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            scratch = Servers.createScratchDirectory("ldap");
+            File ldif = new File(scratch, "people.ldif");
+            new DirectoryGenerator(Servers.DOMAIN, 0).write(ldif, people);
+
+            port = Servers.freePort();
+            server = new Server(port, Servers.DOMAIN, ldif, scratch, true,
+                Collections.<String>emptyList());
+            server.setBulkLoad(true);
+            server.setStorage(storage);
+            server.setIndexedAttributes(Arrays.asList("objectClass", "ou", "dc", "uid", "mail"));
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            server.stop();
+            Servers.deleteScratchDirectory(scratch);
+        }
+    }
+
+    /**
+     * One connection per client thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private final DirectoryGenerator generator = new DirectoryGenerator(Servers.DOMAIN, 0);
+        private LdapNetworkConnection connection;
+        private Random random;
+        private int people;
+
+        @Setup(Level.Trial)
+        public void connect(Directory directory) throws Exception {
+            people = directory.people;
+            random = new Random(Thread.currentThread().getId());
+            connection = new LdapNetworkConnection("localhost", directory.port);
+            connection.connect();
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws Exception {
+            connection.close();
+        }
+
+        int nextPerson() {
+            return random.nextInt(people);
+        }
+    }
+
+    @Benchmark
+    public void bind(Client client) throws Exception {
+        int person = client.nextPerson();
+        client.connection.bind(client.generator.personDn(person), DirectoryGenerator.password(person));
+    }
+
+    @Benchmark
+    public int searchByUid(Client client) throws Exception {
+        return search(client, "(uid=" + DirectoryGenerator.uid(client.nextPerson()) + ')');
+    }
+
+    @Benchmark
+    public int searchByMail(Client client) throws Exception {
+        return search(client, "(mail=" + client.generator.mail(client.nextPerson()) + ')');
+    }
+
+    private int search(Client client, String filter) throws Exception {
+        EntryCursor cursor = client.connection.search(Servers.DOMAIN, filter, SearchScope.SUBTREE);
+        int found = 0;
+        try {
+            while (cursor.next()) {
+                cursor.get();
+                found++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return found;
+    }
+}
@@ -0,0 +1,252 @@
+package net.detailedbalance.ladle.benchmark;
+
+import net.detailedbalance.ladle.Server;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Measures how much of the heap a {@link Server} holds on to while it returns a large result
+ * set: one subtree search of a generated directory, as the admin so that no size limit applies,
+ * optionally in pages.  While the search runs, the heap is collected and measured once a second;
+ * a server which streams its results retains about the same amount however many
+ * entries are returned, while one which buffers them grows with the result set.
+ * <p>
+ * The client is JNDI with a bounded reply queue, so that it stops reading from the socket when
+ * it falls behind, as a real client doing work with each entry would.  (The ApacheDS client
+ * API reads every response into an unbounded queue, which would move the buffering into the
+ * client, in the same heap.)  A delay per entry makes the client slower still.
+ * <p>
+ * This isn't a JMH benchmark, since what it measures is the heap rather than the time; run it
+ * on its own with a fixed <code>-Xmx</code>, as described in the README.
+ */
+public class SearchBenchmark {
+    private static final String ADMIN_DN = "uid=admin,ou=system";
+    private static final String ADMIN_PASSWORD = "secret";
+    private static final int REPLY_QUEUE_SIZE = 1000;
+    private static final long SAMPLE_MILLIS = 1000;
+
+    private final int port;
+    private final String domain;
+    private int pageSize = 0;
+    private int entryDelayMicros = 0;
+
+    public SearchBenchmark(int port, String domain) {
+        this.port = port;
+        this.domain = domain;
+    }
+
+    /**
+     * Requests the results in pages of this many entries.  0, the default, searches without
+     * paging.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets how long the client spends on each entry.  Defaults to 0.
+     */
+    public void setEntryDelayMicros(int entryDelayMicros) {
+        this.entryDelayMicros = entryDelayMicros;
+    }
+
+    public Results run() throws NamingException, IOException, InterruptedException {
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        long startedAt = System.currentTimeMillis();
+        LdapContext context = new InitialLdapContext(environment(), null);
+        try {
+            SearchControls controls = new SearchControls();
+            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            long entries = 0;
+            int pages = 0;
+            long delayedMicros = 0;
+            byte[] cookie = null;
+            do {
+                if (pageSize > 0) {
+                    context.setRequestControls(new Control[] {
+                        new PagedResultsControl(pageSize, cookie, Control.CRITICAL)
+                    });
+                }
+                NamingEnumeration<SearchResult> results =
+                    context.search(domain, "(objectClass=*)", controls);
+                try {
+                    while (results.hasMore()) {
+                        results.next();
+                        entries++;
+                        delayedMicros += entryDelayMicros;
+                        if (delayedMicros >= 1000) {
+                            Thread.sleep(delayedMicros / 1000);
+                            delayedMicros %= 1000;
+                        }
+                    }
+                } finally {
+                    results.close();
+                }
+                pages++;
+                cookie = pageSize > 0 ? nextCookie(context) : null;
+            } while (cookie != null);
+
+            long millis = System.currentTimeMillis() - startedAt;
+            sampler.finish();
+            return new Results(entries, pages, millis, sampler.baseline, sampler.peakRetained);
+        } finally {
+            context.close();
+            sampler.finish();
+        }
+    }
+
+    private Hashtable<String, Object> environment() {
+        Hashtable<String, Object> env = new Hashtable<String, Object>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        env.put(Context.PROVIDER_URL, "ldap://localhost:" + port);
+        env.put(Context.SECURITY_AUTHENTICATION, "simple");
+        env.put(Context.SECURITY_PRINCIPAL, ADMIN_DN);
+        env.put(Context.SECURITY_CREDENTIALS, ADMIN_PASSWORD);
+        env.put("com.sun.jndi.ldap.search.replyQueueSize", String.valueOf(REPLY_QUEUE_SIZE));
+        return env;
+    }
+
+    private static byte[] nextCookie(LdapContext context) throws NamingException {
+        Control[] responseControls = context.getResponseControls();
+        if (responseControls == null) return null;
+        for (Control control : responseControls) {
+            if (control instanceof PagedResultsResponseControl) {
+                byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+                return cookie == null || cookie.length == 0 ? null : cookie;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tracks the most heap in use just after a full collection, i.e., what is actually retained
+     * rather than what is waiting to be collected.  The collections are forced: the usage the
+     * pools report after their own collections would do, except that responses queued for
+     * long enough are promoted to the old generation, which isn't collected during the search,
+     * so they would never show up.
+     */
+    private static class HeapSampler extends Thread {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile boolean finished = false;
+        private long baseline;
+        private long peakRetained;
+
+        public HeapSampler() {
+            super("ladle-heap-sampler");
+            setDaemon(true);
+            baseline = retained();
+            peakRetained = baseline;
+        }
+
+        @Override
+        public void run() {
+            while (!finished) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample() {
+            peakRetained = Math.max(peakRetained, retained());
+        }
+
+        public synchronized void finish() {
+            if (finished) return;
+            finished = true;
+            peakRetained = Math.max(peakRetained, retained());
+        }
+
+        private long retained() {
+            memory.gc();
+            return memory.getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    public static class Results {
+        private final long entries;
+        private final int pages;
+        private final long millis;
+        private final long baselineBytes;
+        private final long peakRetainedBytes;
+
+        public Results(long entries, int pages, long millis, long baselineBytes, long peakRetainedBytes) {
+            this.entries = entries;
+            this.pages = pages;
+            this.millis = millis;
+            this.baselineBytes = baselineBytes;
+            this.peakRetainedBytes = peakRetainedBytes;
+        }
+
+        /**
+         * Formats the results as an aligned text table, in the style of the server's load test.
+         */
+        public List<String> toTable() {
+            List<String> lines = new ArrayList<String>();
+            lines.add(String.format("%10s %8s %10s %10s %12s %12s",
+                "entries", "pages", "ms", "entries/s", "baseline_kb", "retained_kb"));
+            lines.add(String.format("%10d %8d %10d %10.1f %12d %12d",
+                entries, pages, millis, millis == 0 ? 0.0 : entries * 1000.0 / millis,
+                baselineBytes / 1024, peakRetainedBytes / 1024));
+            return lines;
+        }
+    }
+
+    /**
+     * Usage: <code>SearchBenchmark people [page-size] [entry-delay-micros]</code>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println(
+                "Usage: SearchBenchmark people [page-size] [entry-delay-micros]");
+            System.exit(1);
+        }
+        int people = Integer.parseInt(args[0]);
+
+        File scratch = Servers.createScratchDirectory("search");
+        try {
+            File ldif = new File(scratch, "people.ldif");
+            new DirectoryGenerator(Servers.DOMAIN, 0).write(ldif, people);
+            int port = Servers.freePort();
+            Server server = new Server(port, Servers.DOMAIN, ldif, scratch, true,
+                Collections.<String>emptyList());
+            server.setStorage(Server.Storage.MEMORY);
+            server.setBulkLoad(true);
+            server.setMaxSizeLimit(0L);
+            server.start();
+            try {
+                SearchBenchmark benchmark = new SearchBenchmark(port, Servers.DOMAIN);
+                if (args.length > 1) benchmark.setPageSize(Integer.parseInt(args[1]));
+                if (args.length > 2) benchmark.setEntryDelayMicros(Integer.parseInt(args[2]));
+                for (String line : benchmark.run().toTable()) {
+                    System.out.println(line);
+                }
+            } finally {
+                server.stop();
+            }
+        } finally {
+            Servers.deleteScratchDirectory(scratch);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.detailedbalance.ladle.benchmark;
+
+import net.detailedbalance.ladle.Server;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+
+/**
+ * Shared setup for the benchmarks: scratch directories, free ports and quiet logging.
+ */
+final class Servers {
+    public static final String DOMAIN = "dc=example,dc=org";
+
+    static {
+        // ApacheDS logs a great deal at INFO, which would swamp JMH's output
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    private Servers() { }
+
+    public static File createScratchDirectory(String name) throws IOException {
+        File dir = File.createTempFile("ladle-benchmark-" + name, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create scratch directory " + dir);
+        }
+        return dir;
+    }
+
+    public static void deleteScratchDirectory(File dir) throws IOException {
+        if (dir != null && dir.exists()) {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    public static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    public static Server create(File ldif, File tempDirBase) throws IOException {
+        return new Server(freePort(), DOMAIN, ldif, tempDirBase, true, Collections.<String>emptyList());
+    }
+}
@@ -0,0 +1,66 @@
+package net.detailedbalance.ladle.benchmark;
+
+import net.detailedbalance.ladle.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from constructing a {@link Server} to {@link Server#start} returning, i.e.,
+ * to the point where <code>Main</code> prints <code>STARTED</code>.  Each invocation starts from
+ * an empty temporary directory over the bundled default data, so schema extraction and partition
+ * creation are included.  There is no warmup and only one measurement per forked JVM, so every
+ * measurement is a cold start, class loading and JIT compilation included, as it is when the
+ * ruby controller launches a server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+    @Param({ "JDBM", "MEMORY" })
+    public Server.Storage storage;
+
+    private File ldif;
+    private File scratch;
+    private Server server;
+
+    @Setup(Level.Trial)
+    public void findData() {
+        ldif = new File(System.getProperty("ladle.home", "../.."), "lib/ladle/default.ldif");
+    }
+
+    @Setup(Level.Invocation)
+    public void createServer() throws Exception {
+        scratch = Servers.createScratchDirectory("startup");
+        server = Servers.create(ldif, scratch);
+        server.setStorage(storage);
+    }
+
+    @Benchmark
+    public Server start() throws Exception {
+        server.start();
+        return server;
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopServer() throws Exception {
+        server.stop();
+        Servers.deleteScratchDirectory(scratch);
+    }
+}
@@ -0,0 +1,135 @@
+package net.detailedbalance.ladle.benchmark;
+
+import net.detailedbalance.ladle.Server;
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A soak test for the transport settings: many clients at once, each either searching over its
+ * own long-lived connection or repeatedly connecting and disconnecting.  Compare the scores as
+ * <code>workers</code>, <code>processors</code> and <code>backlog</code> are raised.  The number
+ * of clients is 64 by default; raise it with <code>-t</code>.  Connection failures show up as
+ * benchmark errors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(64)
+public class TransportBenchmark {
+    @State(Scope.Benchmark)
+    public static class Directory {
+        @Param({ "1000" })
+        public int people;
+
+        @Param({ "3", "16", "64" })
+        public int workers;
+
+        @Param({ "3" })
+        public int processors;
+
+        @Param({ "50", "1024" })
+        public int backlog;
+
+        private File scratch;
+        private Server server;
+        private int port;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            scratch = Servers.createScratchDirectory("transport");
+            File ldif = new File(scratch, "people.ldif");
+            new DirectoryGenerator(Servers.DOMAIN, 0).write(ldif, people);
+
+            port = Servers.freePort();
+            server = new Server(port, Servers.DOMAIN, ldif, scratch, true,
+                Collections.<String>emptyList());
+            server.setBulkLoad(true);
+            server.setStorage(Server.Storage.MEMORY);
+            server.setIndexedAttributes(Arrays.asList("objectClass", "ou", "dc", "uid"));
+            server.setTransportWorkers(workers);
+            server.setTransportProcessors(processors);
+            server.setBacklog(backlog);
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            server.stop();
+            Servers.deleteScratchDirectory(scratch);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private LdapNetworkConnection connection;
+        private Random random;
+        private int people;
+        private int port;
+
+        @Setup(Level.Trial)
+        public void connect(Directory directory) throws Exception {
+            people = directory.people;
+            port = directory.port;
+            random = new Random(Thread.currentThread().getId());
+            connection = new LdapNetworkConnection("localhost", port);
+            connection.connect();
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws Exception {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public int search(Client client) throws Exception {
+        String filter = "(uid=" + DirectoryGenerator.uid(client.random.nextInt(client.people)) + ')';
+        EntryCursor cursor = client.connection.search(Servers.DOMAIN, filter, SearchScope.SUBTREE);
+        int found = 0;
+        try {
+            while (cursor.next()) {
+                cursor.get();
+                found++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return found;
+    }
+
+    /**
+     * A new connection and anonymous bind each time, which is what fills the backlog.
+     */
+    @Benchmark
+    public void connect(Client client) throws Exception {
+        LdapNetworkConnection connection = new LdapNetworkConnection("localhost", client.port);
+        try {
+            connection.bind();
+        } finally {
+            connection.close();
+        }
+    }
+}
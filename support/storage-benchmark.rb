@@ -0,0 +1,72 @@
+#!/usr/bin/env ruby
+
+# Compares ladle's partition storage options.  For each kind of
+# storage, this starts a server over a generated LDIF, then runs a
+# series of equality searches against it, and prints the startup time
+# and search throughput.
+#
+# Usage: support/storage-benchmark.rb [entries] [searches]
+#
+# Run `rake compile` first.
+
+$LOAD_PATH.unshift File.expand_path("../../lib", __FILE__)
+
+require 'ladle'
+require 'net/ldap'
+require 'benchmark'
+require 'tmpdir'
+
+ENTRIES = (ARGV[0] || 10_000).to_i
+SEARCHES = (ARGV[1] || 2_000).to_i
+
+# Ensure that the searched-for entries are stable between runs.
+srand(0)
+
+def write_ldif(filename, count)
+  File.open(filename, 'w') do |f|
+    f.puts "dn: ou=people,dc=example,dc=org"
+    f.puts "objectClass: top"
+    f.puts "objectClass: organizationalUnit"
+    f.puts "ou: people"
+    f.puts
+    count.times do |i|
+      f.puts "dn: uid=user#{i},ou=people,dc=example,dc=org"
+      f.puts "objectClass: top"
+      f.puts "objectClass: person"
+      f.puts "objectClass: organizationalPerson"
+      f.puts "objectClass: inetOrgPerson"
+      f.puts "uid: user#{i}"
+      f.puts "cn: User #{i}"
+      f.puts "sn: #{i}"
+      f.puts "mail: user#{i}@example.org"
+      f.puts
+    end
+  end
+end
+
+Dir.mktmpdir('ladle-benchmark') do |dir|
+  ldif = File.join(dir, "benchmark.ldif")
+  write_ldif(ldif, ENTRIES)
+  uids = Array.new(SEARCHES) { "user#{rand(ENTRIES)}" }
+
+  puts "#{ENTRIES} entries, #{SEARCHES} searches"
+  [:jdbm, :memory].each do |storage|
+    server = Ladle::Server.new(
+      :ldif => ldif, :tmpdir => dir, :storage => storage,
+      :quiet => true, :timeout => 3600)
+
+    startup = Benchmark.realtime { server.start }
+    begin
+      ldap = Net::LDAP.new(:host => 'localhost', :port => server.port)
+      searching = Benchmark.realtime do
+        uids.each do |uid|
+          ldap.search(:base => 'dc=example,dc=org', :filter => Net::LDAP::Filter.eq('uid', uid))
+        end
+      end
+    ensure
+      server.stop
+    end
+
+    puts "%-8s startup %8.2fs  searches %8.1f/s" % [storage, startup, SEARCHES / searching]
+  end
+end